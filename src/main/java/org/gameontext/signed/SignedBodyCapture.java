@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Captures an outbound message body so it can be hashed before the signed
+ * headers are written.
+ *
+ * The body is kept in fixed size chunks borrowed from a shared pool, and is
+ * hashed as it is written. {@link #writeTo(OutputStream)} replays the chunks
+ * in order without consolidating them into a single array.
+ *
+ * Once the body grows past the spill threshold, it is moved to a temporary
+ * file and a single chunk is kept as a write buffer, so very large bodies do
+ * not sit on the heap. The file is replayed with {@link FileChannel#transferTo},
+ * which avoids copying through the heap where the target allows it.
+ *
+ * Chunks must be returned to the pool (and the file removed) with {@link #release()}.
+ */
+class SignedBodyCapture extends OutputStream {
+
+    static final int CHUNK_SIZE = 8192;
+
+    /** maximum number of idle chunks kept in the pool */
+    static final int MAX_POOLED_CHUNKS = 64;
+
+    static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    static final AtomicInteger pooled = new AtomicInteger(0);
+
+    final MessageDigest md;
+    final List<byte[]> chunks;
+    final long spillThreshold;
+
+    /** temporary file holding the body once spilled, deleted on close */
+    FileChannel file = null;
+
+    byte[] current = null;
+    int position = CHUNK_SIZE; // no current chunk yet
+    long length = 0;
+
+    /**
+     * @param sizeHint Expected body length, or -1 if unknown
+     * @param spillThreshold Number of bytes to hold in memory before spilling to a file
+     */
+    SignedBodyCapture(long sizeHint, long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        try {
+            this.md = MessageDigest.getInstance(SignedRequestHmac.SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new WebApplicationException("Unable to generate hash", Status.INTERNAL_SERVER_ERROR);
+        }
+        int expectedChunks = sizeHint > 0 ? (int) Math.min(Math.min(sizeHint, spillThreshold) / CHUNK_SIZE + 1, 1024) : 4;
+        this.chunks = new ArrayList<>(expectedChunks);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if ( position == CHUNK_SIZE ) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        md.update((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        md.update(b, off, len);
+        length += len;
+
+        while ( len > 0 ) {
+            if ( position == CHUNK_SIZE ) {
+                nextChunk();
+            }
+            int count = Math.min(len, CHUNK_SIZE - position);
+            System.arraycopy(b, off, current, position, count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * @return SHA-256 digest of everything written so far; the digest is reset
+     */
+    byte[] digest() {
+        return md.digest();
+    }
+
+    /**
+     * @return number of bytes captured
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Write the captured body to the real output stream
+     * @param out Output stream
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if ( file != null ) {
+            flush(position);
+            position = 0;
+
+            WritableByteChannel target = out instanceof FileOutputStream
+                    ? ((FileOutputStream) out).getChannel()
+                    : Channels.newChannel(out);
+            long size = file.size();
+            long written = 0;
+            while ( written < size ) {
+                written += file.transferTo(written, size - written, target);
+            }
+            return;
+        }
+
+        int last = chunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            out.write(chunks.get(i), 0, CHUNK_SIZE);
+        }
+        if ( last >= 0 ) {
+            out.write(chunks.get(last), 0, position);
+        }
+    }
+
+    /**
+     * @return true if the body has been moved to a temporary file
+     */
+    boolean spilled() {
+        return file != null;
+    }
+
+    /**
+     * Return all chunks to the pool and remove any temporary file.
+     * The capture can not be used afterwards.
+     */
+    void release() {
+        if ( file != null ) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                SignedLogger.writeLog(Level.FINE, this, "Unable to remove spilled body", e);
+            }
+            file = null;
+        }
+        recycle();
+        current = null;
+    }
+
+    private void nextChunk() throws IOException {
+        if ( file == null && (long) chunks.size() * CHUNK_SIZE >= spillThreshold ) {
+            spill();
+        } else if ( file != null ) {
+            // the single remaining chunk is a write buffer for the file
+            flush(position);
+            position = 0;
+        } else {
+            current = borrow();
+            chunks.add(current);
+            position = 0;
+        }
+    }
+
+    /**
+     * Move captured chunks to a temporary file. All chunks are full.
+     */
+    private void spill() throws IOException {
+        file = FileChannel.open(Files.createTempFile("gameon-signed-", ".body"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+
+        for (byte[] chunk : chunks) {
+            write(chunk, CHUNK_SIZE);
+        }
+
+        // Keep one chunk as the write buffer, return the rest
+        current = chunks.isEmpty() ? borrow() : chunks.remove(chunks.size() - 1);
+        recycle();
+        chunks.add(current);
+        position = 0;
+    }
+
+    private void flush(int count) throws IOException {
+        write(current, count);
+    }
+
+    private void write(byte[] chunk, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+        while ( buffer.hasRemaining() ) {
+            file.write(buffer);
+        }
+    }
+
+    private void recycle() {
+        for (byte[] chunk : chunks) {
+            if ( pooled.incrementAndGet() <= MAX_POOLED_CHUNKS ) {
+                pool.offer(chunk);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    private static byte[] borrow() {
+        byte[] chunk = pool.poll();
+        if ( chunk == null ) {
+            chunk = new byte[CHUNK_SIZE];
+        } else {
+            pooled.decrementAndGet();
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.eclipse.microprofile.config.Config;
+
+/**
+ * Caching {@link SignedRequestSecretProvider}, for providers that fetch secrets
+ * from a remote service.
+ *
+ * Secrets are kept for a time-to-live. Once most of that time has passed
+ * (the refresh ratio), the next lookup still returns the cached secret but
+ * also fetches it again in the background, so frequently used secrets never
+ * expire in the request path. Unknown ids (a null secret) are cached for a
+ * shorter time. A failed lookup is not cached.
+ *
+ * The cache holds a limited number of ids. When it is full, the least recently
+ * used of a small random sample of entries is evicted (expired entries first).
+ *
+ * Concurrent lookups of the same id are coalesced: one call to the provider
+ * answers every waiting caller, or fails all of them. This applies even when
+ * the time-to-live is 0 and nothing is cached, so a burst of requests from one
+ * id does not become a burst of calls to the player service.
+ *
+ * Use {@link #invalidate(String)} when a secret is rotated: this also drops the
+ * key material cached by {@link SignedMacCache} for the old secret.
+ *
+ * {@link SignedRequestFeature} wraps the application's provider in this class,
+ * caching secrets if {@code gameon.signed.secret-cache.ttl-ms} is set. The
+ * application can reach that instance with {@link #get()}, e.g. to invalidate
+ * a rotated secret or to read the statistics.
+ */
+public final class SignedCachingSecretProvider implements SignedRequestSecretProvider {
+
+    static final long DEFAULT_NEGATIVE_TTL_MS = 5000;
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+    static final double DEFAULT_REFRESH_RATIO = 0.8;
+
+    /** number of entries compared when choosing one to evict */
+    static final int EVICTION_SAMPLES = 8;
+
+    static final class Entry {
+        /** null for an unknown id */
+        final String secret;
+        final long expiresAt;
+        final long refreshAt;
+        volatile long accessed;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(String secret, long now, long expiresAt, long refreshAt) {
+            this.secret = secret;
+            this.accessed = now;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /** the provider used by SignedRequestFeature */
+    private static volatile SignedCachingSecretProvider installed;
+
+    private final SignedRequestSecretProvider delegate;
+    private final long ttl;
+    private final long negativeTtl;
+    private final long refreshAfter;
+    private final int maxEntries;
+    private final Executor executor;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** lookups in progress, shared by every caller asking for the same id */
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param delegate Provider that fetches secrets
+     * @param ttl How long a secret is kept: 0 to only coalesce concurrent lookups
+     * @param negativeTtl How long an unknown id is remembered
+     * @param maxEntries Maximum number of ids held
+     */
+    public SignedCachingSecretProvider(SignedRequestSecretProvider delegate, Duration ttl, Duration negativeTtl, int maxEntries) {
+        this(delegate, ttl.toMillis(), negativeTtl.toMillis(), maxEntries, DEFAULT_REFRESH_RATIO, refreshExecutor());
+    }
+
+    /**
+     * @param delegate Provider that fetches secrets
+     * @param ttlMs How long a secret is kept: 0 to only coalesce concurrent lookups
+     * @param negativeTtlMs How long an unknown id is remembered
+     * @param maxEntries Maximum number of ids held
+     * @param refreshRatio Fraction of the time-to-live after which a secret is fetched again
+     *      in the background: 1 or more to disable
+     * @param executor Runs background refreshes
+     */
+    SignedCachingSecretProvider(SignedRequestSecretProvider delegate, long ttlMs, long negativeTtlMs, int maxEntries,
+            double refreshRatio, Executor executor) {
+        if ( delegate == null ) {
+            throw new NullPointerException("delegate");
+        }
+        this.delegate = delegate;
+        this.ttl = ttlMs;
+        this.negativeTtl = negativeTtlMs;
+        this.refreshAfter = refreshRatio < 1 ? (long) (ttlMs * refreshRatio) : Long.MAX_VALUE;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.executor = executor;
+    }
+
+    /**
+     * @param provider Application's provider
+     * @param config Configuration
+     * @return the provider, wrapped so concurrent lookups are coalesced, and
+     *      cached if gameon.signed.secret-cache.ttl-ms is set. This becomes the
+     *      instance returned by {@link #get()}.
+     */
+    static SignedRequestSecretProvider wrap(SignedRequestSecretProvider provider, Config config) {
+        if ( provider == null ) {
+            return null;
+        }
+        SignedCachingSecretProvider caching;
+        if ( provider instanceof SignedCachingSecretProvider ) {
+            caching = (SignedCachingSecretProvider) provider;
+        } else {
+            long ttl = Math.max(0, config.getOptionalValue("gameon.signed.secret-cache.ttl-ms", Long.class).orElse(0L));
+            caching = new SignedCachingSecretProvider(provider, ttl,
+                    config.getOptionalValue("gameon.signed.secret-cache.negative-ttl-ms", Long.class).orElse(DEFAULT_NEGATIVE_TTL_MS),
+                    config.getOptionalValue("gameon.signed.secret-cache.max-entries", Integer.class).orElse(DEFAULT_MAX_ENTRIES),
+                    config.getOptionalValue("gameon.signed.secret-cache.refresh-ratio", Double.class).orElse(DEFAULT_REFRESH_RATIO),
+                    refreshExecutor());
+        }
+        installed = caching;
+        return caching;
+    }
+
+    /**
+     * @return the provider used to verify signed requests, or null if
+     *      {@link SignedRequestFeature} has not been started
+     */
+    public static SignedCachingSecretProvider get() {
+        return installed;
+    }
+
+    @Override
+    public String getSecretForId(String userId) {
+        long now = SignedClock.now();
+        Entry entry = entries.get(userId);
+        if ( entry != null && now < entry.expiresAt ) {
+            entry.accessed = now;
+            if ( entry.secret == null ) {
+                negativeHits.increment();
+            } else {
+                hits.increment();
+                if ( now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true) ) {
+                    refresh(userId, entry);
+                }
+            }
+            return entry.secret;
+        }
+
+        misses.increment();
+        return load(userId);
+    }
+
+    /**
+     * Forget the secret for an id, e.g. after it has been rotated. A lookup
+     * that was already in progress still answers its callers, but its secret
+     * is not cached.
+     * @param userId gameon-id
+     */
+    public void invalidate(String userId) {
+        inFlight.remove(userId);
+        Entry entry = entries.remove(userId);
+        if ( entry != null ) {
+            SignedMacCache.invalidate(entry.secret);
+        }
+    }
+
+    /**
+     * Forget all secrets
+     */
+    public void invalidateAll() {
+        inFlight.clear();
+        entries.clear();
+        SignedMacCache.clear();
+    }
+
+    /**
+     * @return number of ids held, including unknown ids and expired entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups answered with a cached secret
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups answered with a cached unknown id
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return number of lookups passed to the provider
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of lookups (including refreshes) that failed
+     */
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    /**
+     * @return number of secrets fetched again in the background
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return number of entries evicted to make room
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of lookups that waited for another caller's lookup of the same id
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private String load(String userId) {
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(userId, flight);
+        if ( existing != null ) {
+            coalesced.increment();
+            return join(existing);
+        }
+        fetch(userId, flight, null);
+        return join(flight);
+    }
+
+    private void refresh(String userId, Entry entry) {
+        try {
+            executor.execute(() -> {
+                CompletableFuture<String> flight = new CompletableFuture<>();
+                if ( inFlight.putIfAbsent(userId, flight) != null ) {
+                    entry.refreshing.set(false); // already being fetched
+                    return;
+                }
+                fetch(userId, flight, entry);
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Ask the provider for a secret, and share the result (or failure) with
+     * every caller waiting on the in-flight lookup
+     */
+    private void fetch(String userId, CompletableFuture<String> flight, Entry previous) {
+        try {
+            String secret = delegate.getSecretForId(userId);
+            Entry entry = put(userId, secret, previous);
+            if ( entry != null && inFlight.get(userId) != flight && entries.remove(userId, entry) ) {
+                // invalidated while it was being fetched
+                SignedMacCache.invalidate(secret);
+            }
+            if ( previous != null ) {
+                refreshes.increment();
+            }
+            flight.complete(secret);
+        } catch (RuntimeException | Error e) {
+            loadFailures.increment();
+            if ( previous != null ) {
+                // keep the current secret until it expires: the next lookup tries again
+                previous.refreshing.set(false);
+                SignedLogger.writeLog(Level.FINE, this, "Unable to refresh secret for " + userId, e);
+            }
+            flight.completeExceptionally(e);
+        } finally {
+            inFlight.remove(userId, flight);
+        }
+    }
+
+    /**
+     * Wait for a lookup, and share its result or failure
+     */
+    private static String join(CompletableFuture<String> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param previous Entry being refreshed: the new entry is only stored if it is still current
+     * @return the entry stored, or null
+     */
+    private Entry put(String userId, String secret, Entry previous) {
+        if ( ttl <= 0 ) {
+            return null; // only coalescing
+        }
+        long now = SignedClock.now();
+        Entry entry = secret == null
+                ? new Entry(null, now, saturatedAdd(now, negativeTtl), Long.MAX_VALUE)
+                : new Entry(secret, now, saturatedAdd(now, ttl), saturatedAdd(now, refreshAfter));
+
+        Entry replaced;
+        if ( previous == null ) {
+            replaced = entries.put(userId, entry);
+        } else if ( entries.replace(userId, previous, entry) ) {
+            replaced = previous;
+        } else {
+            return null; // invalidated while it was being refreshed
+        }
+
+        if ( replaced != null && replaced.secret != null && !replaced.secret.equals(secret) ) {
+            SignedMacCache.invalidate(replaced.secret);
+        }
+        if ( entries.size() > maxEntries ) {
+            evict(now);
+        }
+        return entry;
+    }
+
+    private void evict(long now) {
+        while ( entries.size() > maxEntries ) {
+            // sample from a random point anywhere in the map, wrapping around at the end:
+            // a miss already waits for the provider, which costs far more than the walk
+            Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+            for (int skip = ThreadLocalRandom.current().nextInt(Math.max(1, entries.size())); skip > 0 && i.hasNext(); skip--) {
+                i.next();
+            }
+
+            Map.Entry<String, Entry> victim = null;
+            for (int n = 0; n < EVICTION_SAMPLES; n++) {
+                if ( !i.hasNext() ) {
+                    i = entries.entrySet().iterator();
+                    if ( !i.hasNext() ) {
+                        break;
+                    }
+                }
+                Map.Entry<String, Entry> candidate = i.next();
+                if ( now >= candidate.getValue().expiresAt ) {
+                    victim = candidate;
+                    break;
+                }
+                if ( victim == null || candidate.getValue().accessed < victim.getValue().accessed ) {
+                    victim = candidate;
+                }
+            }
+            if ( victim != null && entries.remove(victim.getKey(), victim.getValue()) ) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private static long saturatedAdd(long now, long millis) {
+        return millis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis;
+    }
+
+    private static Executor refreshExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1024), r -> {
+            Thread thread = new Thread(r, "gameon-signed-secret-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -53,6 +53,11 @@ public class SignedClientRequestFilter implements ClientRequestFilter, WriterInt
     List<String> header_names;
     List<String> parameter_names;
 
+    /** replaced as a whole when the required attributes change */
+    volatile SignedRequestSigner signer;
+
+    final SignedWriterInterceptor writerInterceptor = new SignedWriterInterceptor();
+
     public SignedClientRequestFilter(String userId, String secret) {
         this(userId, secret, null, null);
     }
@@ -70,11 +75,12 @@ public class SignedClientRequestFilter implements ClientRequestFilter, WriterInt
     public void setRequiredAttributes(List<String> header_names, List<String> parameter_names) {
         this.header_names = header_names;
         this.parameter_names = parameter_names;
+        this.signer = secret.isEmpty() ? null : new SignedRequestSigner(userId, secret, header_names, parameter_names);
     }
 
     /**
-     * Called as part of the outbound request's filter chain. This creates a {@link SignedRequestHmac}
-     * for this request, and uses it to set Game On specific request headers.
+     * Called as part of the outbound request's filter chain. This uses the shared
+     * {@link SignedRequestSigner} to set Game On specific request headers.
      *
      * If there is an entity (a body), this method will save the {@link SignedRequestHmac} in the
      * request context, and the {@link SignedWriterInterceptor} will sign the request after we have the
@@ -97,12 +103,14 @@ public class SignedClientRequestFilter implements ClientRequestFilter, WriterInt
                 requestContext.getEntity());
 
         try {
-            clientHmac = new SignedRequestHmac(userId, secret,
-                    requestContext.getMethod(),
-                    requestContext.getUri().getRawPath());
+            SignedRequestSigner signer = this.signer;
+            if ( signer == null ) {
+                throw new WebApplicationException("Invalid or unretrievable shared secret", Response.Status.FORBIDDEN);
+            }
 
-            clientHmac.setNow()
-                  .generateRequestHeaderHashes(headers, header_names, parameters, parameter_names);
+            clientHmac = signer.prepare(requestContext.getMethod(),
+                    requestContext.getUri().getRawPath(),
+                    headers, parameters);
 
             if ( requestContext.hasEntity() ) {
 
@@ -130,7 +138,6 @@ public class SignedClientRequestFilter implements ClientRequestFilter, WriterInt
 
     @Override
     public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
-        SignedWriterInterceptor interceptor = new SignedWriterInterceptor();
-        interceptor.aroundWriteTo(context);
+        writerInterceptor.aroundWriteTo(context);
     }
 }
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.microprofile.config.ConfigProvider;
+
+/**
+ * Source of the current time (epoch milliseconds) for request dates, expiry
+ * checks and the replay cache.
+ *
+ * By default this is the system clock. Setting {@code gameon.signed.clock.tick-ms}
+ * selects a coarse clock instead: a daemon thread updates a volatile field every
+ * tick, so reading the time is a single field read. The coarse clock follows
+ * the wall clock when that moves ahead. When the wall clock is stepped back, the
+ * coarse clock runs at half speed, measured with {@link System#nanoTime()},
+ * until the wall clock catches up: it never goes backwards for a small step, and
+ * is never more than {@link #MAX_AHEAD_MS} ahead of the wall clock, well within
+ * the skew allowed for request dates. Tests and benchmarks can
+ * {@link #set(SignedClock)} their own clock.
+ */
+public abstract class SignedClock {
+
+    /** most the coarse clock runs ahead of the wall clock after it is stepped back */
+    static final long MAX_AHEAD_MS = 1000;
+
+    /** the system clock */
+    public static final SignedClock SYSTEM = new SignedClock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final SignedClock CONFIGURED = configured();
+
+    private static volatile SignedClock current = CONFIGURED;
+
+    /**
+     * @return current time in epoch milliseconds
+     */
+    public abstract long millis();
+
+    /**
+     * @return current time in epoch milliseconds, from the current clock
+     */
+    public static long now() {
+        return current.millis();
+    }
+
+    /**
+     * @return the current clock
+     */
+    public static SignedClock get() {
+        return current;
+    }
+
+    /**
+     * Replace the current clock, e.g. with a fixed clock for tests
+     * @param clock New clock, or null to restore the configured clock
+     */
+    public static void set(SignedClock clock) {
+        current = clock == null ? CONFIGURED : clock;
+    }
+
+    /**
+     * @param tickMs Update interval in milliseconds
+     * @return a clock updated by a daemon thread every tick, for the life of the process
+     */
+    static SignedClock coarse(long tickMs) {
+        Coarse clock = new Coarse(System.currentTimeMillis(), System.nanoTime());
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        Thread ticker = new Thread(() -> {
+            while ( true ) {
+                LockSupport.parkNanos(tickNanos);
+                clock.tick(System.currentTimeMillis(), System.nanoTime());
+            }
+        }, "gameon-signed-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+        return clock;
+    }
+
+    private static SignedClock configured() {
+        long tick;
+        try {
+            tick = ConfigProvider.getConfig().getOptionalValue("gameon.signed.clock.tick-ms", Long.class).orElse(0L);
+        } catch (RuntimeException e) {
+            tick = 0; // no configuration available, e.g. in a client
+        }
+        return tick > 0 ? coarse(tick) : SYSTEM;
+    }
+
+    static final class Coarse extends SignedClock {
+        private static final long MAX_AHEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(MAX_AHEAD_MS);
+
+        /** time in epoch nanoseconds, and System.nanoTime() at the last tick: only used by the ticking thread */
+        private long time;
+        private long lastNanos;
+
+        private volatile long now;
+
+        Coarse(long wallMillis, long nanos) {
+            this.time = TimeUnit.MILLISECONDS.toNanos(wallMillis);
+            this.lastNanos = nanos;
+            this.now = wallMillis;
+        }
+
+        /**
+         * @param wallMillis System.currentTimeMillis()
+         * @param nanos System.nanoTime()
+         */
+        void tick(long wallMillis, long nanos) {
+            long elapsed = Math.max(0, nanos - lastNanos);
+            long wall = TimeUnit.MILLISECONDS.toNanos(wallMillis);
+            lastNanos = nanos;
+            if ( wall >= time + elapsed ) {
+                // the wall clock moved ahead: follow it
+                time = wall;
+            } else {
+                // the wall clock was stepped back: slow down until it catches up
+                time = Math.max(wall, Math.min(time + elapsed / 2, wall + MAX_AHEAD_NANOS));
+            }
+            now = TimeUnit.NANOSECONDS.toMillis(time);
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+}
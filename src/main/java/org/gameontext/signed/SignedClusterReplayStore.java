@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Replay store replicated between peer nodes, so a signature seen by any node
+ * is refused by all of them.
+ *
+ * Each node answers from its own {@link SignedReplayTable}, which also serves
+ * as the near cache: adding a new signature never waits for the network.
+ * New signatures are queued and sent to every peer in batches (one UDP datagram
+ * per peer every {@code flushMs}, or sooner when a datagram is full), each
+ * with its expiry time, so peers expire them with the same TTL. A request
+ * replayed to another node is therefore refused once the batch has arrived:
+ * within a few milliseconds, rather than at once.
+ *
+ * Delivery is best-effort: a datagram that is lost, or a signature dropped
+ * because the send queue is full, is not sent again, and a request replayed
+ * to a node that missed it is accepted. Replicating narrows the window for a
+ * replay to another node; it does not close it. Dropped and rejected
+ * signatures are counted, see {@link SignedRequestTimedCache#getReplicationDropped()}.
+ *
+ * Expiry times sent by a peer are capped at the longest TTL this node would
+ * give a signature, so a faulty peer can not hold slots for longer.
+ *
+ * Datagrams are authenticated with a truncated HmacSHA256 when a cluster
+ * secret is set; otherwise any host that can reach the port can add
+ * signatures. {@link SignedRequestTimedCache} requires the secret.
+ *
+ * The Bloom filter hint is ignored: a peer may have added the signature.
+ */
+final class SignedClusterReplayStore implements SignedReplayStore {
+
+    static final int MAGIC = 0x676f5231; // "goR1"
+    static final int HEADER_BYTES = 8;
+    static final int ENTRY_BYTES = 3 * Long.BYTES;
+    static final int MAC_BYTES = 16;
+
+    /** keep datagrams within a typical MTU */
+    static final int MAX_DATAGRAM = 1400;
+    static final int MAX_BATCH = (MAX_DATAGRAM - HEADER_BYTES - MAC_BYTES) / ENTRY_BYTES;
+
+    /** signatures waiting to be sent: more than this are dropped */
+    static final int MAX_QUEUED = 64 * 1024;
+
+    private final SignedReplayTable local;
+    private final DatagramChannel channel;
+    private final List<SocketAddress> peers = new CopyOnWriteArrayList<>();
+
+    /** one each for the sender and receiver threads, or null without a secret */
+    private final Mac sendMac;
+    private final Mac receiveMac;
+
+    private final SignedReplayBatcher sender;
+    private final Thread receiver;
+    private volatile boolean running = true;
+
+    final AtomicLong sentBatches = new AtomicLong(0);
+    final AtomicLong sentEntries = new AtomicLong(0);
+    final AtomicLong receivedEntries = new AtomicLong(0);
+    /** signatures not sent to a peer: the queue was full, or the send failed */
+    final AtomicLong dropped = new AtomicLong(0);
+    /** datagrams ignored: malformed, or not authenticated */
+    final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * @param local Table holding this node's signatures
+     * @param bind Local address for replication traffic (port 0 for any free port)
+     * @param peers Addresses of the other nodes: the local address is skipped, so all nodes may share one list
+     * @param flushMs Longest time a new signature waits before it is sent
+     * @param secret Shared secret used to authenticate datagrams, or null
+     * @throws IOException if the address can not be bound
+     */
+    SignedClusterReplayStore(SignedReplayTable local, InetSocketAddress bind, List<InetSocketAddress> peers,
+            long flushMs, String secret) throws IOException {
+        this.local = local;
+        this.sendMac = mac(secret);
+        this.receiveMac = mac(secret);
+        this.channel = DatagramChannel.open().bind(bind);
+        for (InetSocketAddress peer : peers) {
+            addPeer(peer);
+        }
+
+        this.sender = new SignedReplayBatcher("gameon-signed-replay-sender", MAX_QUEUED,
+                HEADER_BYTES, MAX_BATCH, MAC_BYTES, flushMs, this::send);
+        this.receiver = new Thread(this::receive, "gameon-signed-replay-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        SignedLogger.writeLog(Level.INFO, this, "Replay store replicating from {0} to {1}", getAddress(), this.peers);
+    }
+
+    /**
+     * @return local address for replication traffic
+     */
+    InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void addPeer(InetSocketAddress peer) {
+        if ( !peer.equals(getAddress()) && !peers.contains(peer) ) {
+            peers.add(peer);
+        }
+    }
+
+    @Override
+    public Result add(long k0, long k1, long expiresAt, long now, boolean absent) {
+        Result result = local.add(k0, k1, expiresAt, now, false);
+        if ( result == Result.ADDED && !peers.isEmpty() && !sender.offer(k0, k1, expiresAt) ) {
+            dropped.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public int sweep(long now, long budgetNanos) {
+        return local.sweep(now, budgetNanos);
+    }
+
+    @Override
+    public int size(long now) {
+        return local.size(now);
+    }
+
+    @Override
+    public long depth() {
+        return local.depth();
+    }
+
+    @Override
+    public void forEach(long now, Visitor visitor) {
+        local.forEach(now, visitor);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        sender.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            SignedLogger.writeLog(Level.FINE, this, "Unable to close replication channel", e);
+        }
+    }
+
+    /**
+     * Sender thread: send each batch to every peer.
+     */
+    private void send(ByteBuffer batch, int count) {
+        batch.putInt(0, MAGIC).putInt(4, count);
+        if ( sendMac != null ) {
+            batch.put(sign(sendMac, batch.array(), batch.position()), 0, MAC_BYTES);
+        }
+        batch.flip();
+        for (SocketAddress peer : peers) {
+            try {
+                channel.send(batch.duplicate(), peer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                dropped.addAndGet(count);
+                SignedLogger.writeLog(Level.FINE, this, "Unable to send signatures to " + peer, e);
+            }
+        }
+        sentBatches.incrementAndGet();
+        sentEntries.addAndGet(count);
+    }
+
+    /**
+     * Receiver thread: add signatures sent by peers to the local table.
+     */
+    private void receive() {
+        ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM);
+        Mac mac = receiveMac;
+        int macBytes = mac == null ? 0 : MAC_BYTES;
+        while ( running ) {
+            try {
+                batch.clear();
+                SocketAddress from = channel.receive(batch);
+                batch.flip();
+                int length = batch.limit();
+                int count = length >= HEADER_BYTES ? batch.getInt(4) : -1;
+                if ( count < 0 || count > MAX_BATCH || batch.getInt(0) != MAGIC
+                        || length != HEADER_BYTES + count * ENTRY_BYTES + macBytes
+                        || (mac != null && !verify(mac, batch.array(), length - MAC_BYTES)) ) {
+                    rejected.incrementAndGet();
+                    SignedLogger.writeLog(Level.FINE, this, "Ignoring datagram from {0}", from);
+                    continue;
+                }
+
+                long now = SignedClock.now();
+                long latest = SignedRequestTimedCache.expiresAt(now,
+                        SignedRequestHmac.EXPIRES_REPLAY_MS.plus(SignedRequestHmac.REPLAY_SKEW_MS));
+                batch.position(HEADER_BYTES);
+                for (int i = 0; i < count; i++) {
+                    long k0 = batch.getLong();
+                    long k1 = batch.getLong();
+                    long expiresAt = Math.min(batch.getLong(), latest);
+                    if ( expiresAt >= now ) {
+                        local.add(k0, k1, expiresAt, now, false);
+                    }
+                }
+                receivedEntries.addAndGet(count);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                SignedLogger.writeLog(Level.WARNING, this, "Unable to receive signatures", e);
+            }
+        }
+    }
+
+    private static Mac mac(String secret) {
+        if ( secret == null || secret.isEmpty() ) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(SignedRequestHmac.HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), SignedRequestHmac.HMAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create replication mac", e);
+        }
+    }
+
+    private static byte[] sign(Mac mac, byte[] data, int length) {
+        mac.update(data, 0, length);
+        return mac.doFinal();
+    }
+
+    private static boolean verify(Mac mac, byte[] data, int length) {
+        byte[] expected = sign(mac, data, length);
+        byte[] actual = new byte[MAC_BYTES];
+        System.arraycopy(data, length, actual, 0, MAC_BYTES);
+        return MessageDigest.isEqual(actual, Arrays.copyOf(expected, MAC_BYTES));
+    }
+}
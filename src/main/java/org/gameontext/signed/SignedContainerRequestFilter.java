@@ -114,19 +114,20 @@ public class SignedContainerRequestFilter implements ContainerRequestFilter {
             hmac = new SignedRequestHmac(userId, secret, method,
                     requestContext.getUriInfo().getAbsolutePath().getPath())
                     .checkHeaders(headers)
-                    .checkDuplicate(timedCache)
                     .checkExpiry()
                     .verifyRequestHeaderHashes(headers, query);
 
             if ( hmac.hasRequestBody() ) {
                 // set this as a property on the request context, and wait for the
-                // signed request interceptor to catch the request
+                // signed request interceptor to catch the request (it also checks for duplicates)
                 // @see SignedReaderInterceptor as assigned by SignedRequestFeature
                 requestContext.setProperty("SignedRequestHmac", hmac);
             } else {
                 SignedLogger.writeLog(Level.FINEST, this, "FILTER: verifying hmac");
                 hmac.verifyFullSignature();
                 SignedLogger.writeLog(Level.FINEST, this, "FILTER: hmac verified");
+                // only verified signatures are remembered, or count against a quota
+                hmac.checkDuplicate(timedCache);
             }
         } catch(WebApplicationException ex) {
             invalidHmacEx = ex;
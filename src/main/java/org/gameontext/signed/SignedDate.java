@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parsing for gameon-date header values.
+ *
+ * Current clients send RFC 1123 dates, e.g. 'Sat, 21 May 2016 19:14:54 GMT', which are
+ * parsed by hand here. Old clients send {@code Instant.toString()} values. Either is
+ * recognized without throwing: DateTimeFormatter is only used (and only throws) for
+ * unusual or invalid values.
+ *
+ * Most requests within a given second carry the same date string, so the last few
+ * parsed values are remembered. For the same reason, the current date string used
+ * when signing is only formatted once per second.
+ */
+final class SignedDate {
+
+    /** number of remembered values: must be a power of two */
+    static final int CACHE_SIZE = 8;
+
+    static final String[] DAYS = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+    static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+                                     "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    /**
+     * A parsed date value. Immutable, so can be shared through the cache.
+     */
+    static final class Parsed {
+        final String value;
+        final Instant instant;
+        final boolean oldStyle;
+
+        Parsed(String value, Instant instant, boolean oldStyle) {
+            this.value = value;
+            this.instant = instant;
+            this.oldStyle = oldStyle;
+        }
+    }
+
+    private static final Parsed[] cache = new Parsed[CACHE_SIZE];
+
+    /** current second and its formatted value, replaced as a whole when the second changes */
+    private static volatile Parsed now = null;
+
+    private SignedDate() {
+    }
+
+    /**
+     * @param value RFC 1123 or old-style (Instant) date string
+     * @return parsed value, or null if the value is not a valid date
+     */
+    static Parsed parse(String value) {
+        if ( value == null ) {
+            return null;
+        }
+
+        int slot = value.hashCode() & (CACHE_SIZE - 1);
+        Parsed parsed = cache[slot];
+        if ( parsed != null && parsed.value.equals(value) ) {
+            return parsed;
+        }
+
+        parsed = parseValue(value);
+        if ( parsed != null ) {
+            cache[slot] = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the current time, truncated to the second, and its RFC 1123 date string
+     */
+    static Parsed now() {
+        long seconds = Math.floorDiv(SignedClock.now(), 1000);
+        Parsed current = now;
+        if ( current == null || current.instant.getEpochSecond() != seconds ) {
+            // Racing threads may both format the same second: harmless
+            Instant instant = Instant.ofEpochSecond(seconds);
+            current = new Parsed(DateTimeFormatter.RFC_1123_DATE_TIME.format(instant.atOffset(ZoneOffset.UTC)),
+                    instant, false);
+            now = current;
+        }
+        return current;
+    }
+
+    private static Parsed parseValue(String value) {
+        long seconds = parseRfc1123(value);
+        if ( seconds != Long.MIN_VALUE ) {
+            return new Parsed(value, Instant.ofEpochSecond(seconds), false);
+        }
+
+        try {
+            if ( looksLikeInstant(value) ) {
+                // TEMPORARY: old-style, skip method and URI when parsing signature
+                return new Parsed(value, Instant.parse(value), true);
+            }
+            // Valid, but unusual: e.g. lower case, or lenient field widths
+            ZonedDateTime then = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return new Parsed(value, then.toInstant(), false);
+        } catch(DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the usual form of an RFC 1123 date: '[EEE, ]d MMM yyyy HH:mm[:ss] GMT|+HHMM'
+     * @return epoch seconds, or Long.MIN_VALUE if the value is not in the usual form
+     */
+    static long parseRfc1123(String value) {
+        int len = value.length();
+        int pos = 0;
+
+        int dayOfWeek = -1;
+        if ( len > 5 && value.charAt(3) == ',' && value.charAt(4) == ' ' ) {
+            dayOfWeek = indexOf(DAYS, value, 0);
+            if ( dayOfWeek < 0 )
+                return Long.MIN_VALUE;
+            pos = 5;
+        }
+
+        // day of month: 1 or 2 digits
+        int day = digits(value, pos, 1);
+        if ( day < 0 )
+            return Long.MIN_VALUE;
+        pos++;
+        if ( pos < len && value.charAt(pos) != ' ' ) {
+            int next = digits(value, pos, 1);
+            if ( next < 0 )
+                return Long.MIN_VALUE;
+            day = day * 10 + next;
+            pos++;
+        }
+
+        if ( !space(value, pos) || len < pos + 19 )
+            return Long.MIN_VALUE;
+        int month = indexOf(MONTHS, value, pos + 1) + 1;
+        pos += 4;
+
+        if ( month == 0 || !space(value, pos) )
+            return Long.MIN_VALUE;
+        int year = digits(value, pos + 1, 4);
+        pos += 5;
+
+        if ( year < 0 || !space(value, pos) )
+            return Long.MIN_VALUE;
+        int hour = digits(value, pos + 1, 2);
+        int minute = value.charAt(pos + 3) == ':' ? digits(value, pos + 4, 2) : -1;
+        pos += 6;
+
+        int second = 0;
+        if ( pos < len && value.charAt(pos) == ':' ) {
+            second = digits(value, pos + 1, 2);
+            pos += 3;
+        }
+
+        if ( hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || day < 1 || day > daysInMonth(year, month) || !space(value, pos) )
+            return Long.MIN_VALUE;
+        pos++;
+
+        int offset;
+        if ( len == pos + 3 && value.startsWith("GMT", pos) ) {
+            offset = 0;
+        } else if ( len == pos + 5 && (value.charAt(pos) == '+' || value.charAt(pos) == '-') ) {
+            int offsetHours = digits(value, pos + 1, 2);
+            int offsetMinutes = digits(value, pos + 3, 2);
+            if ( offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59 )
+                return Long.MIN_VALUE;
+            offset = (offsetHours * 60 + offsetMinutes) * 60;
+            if ( value.charAt(pos) == '-' )
+                offset = -offset;
+        } else {
+            return Long.MIN_VALUE;
+        }
+
+        long epochDay = epochDay(year, month, day);
+        if ( dayOfWeek >= 0 && Math.floorMod(epochDay + 3, 7) != dayOfWeek ) {
+            // let DateTimeFormatter reject it
+            return Long.MIN_VALUE;
+        }
+        return epochDay * 86400 + hour * 3600 + minute * 60 + second - offset;
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date
+     */
+    static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean looksLikeInstant(String value) {
+        // e.g. 2016-05-21T19:14:54.123Z
+        return value.length() > 10 && value.charAt(4) == '-' && value.charAt(10) == 'T';
+    }
+
+    private static boolean space(String value, int pos) {
+        return pos < value.length() && value.charAt(pos) == ' ';
+    }
+
+    private static int indexOf(String[] names, String value, int pos) {
+        for (int i = 0; i < names.length; i++) {
+            if ( value.startsWith(names[i], pos) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return value of count decimal digits at pos, or -1
+     */
+    private static int digits(String value, int pos, int count) {
+        if ( pos + count > value.length() )
+            return -1;
+
+        int result = 0;
+        for (int i = pos; i < pos + count; i++) {
+            char c = value.charAt(i);
+            if ( c < '0' || c > '9' )
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Passes the request body through to the entity provider, updating a SHA-256
+ * digest with the raw bytes as they are read.
+ *
+ * The entity provider may stop reading before the end of the body (or close
+ * the stream early), so {@link #verify()} reads whatever remains before
+ * checking the digest against the signed request.
+ */
+class SignedDigestInputStream extends FilterInputStream {
+
+    static final int DRAIN_BUFFER_SIZE = 4096;
+
+    final SignedRequestHmac hmac;
+    final MessageDigest md;
+
+    long length = 0;
+    boolean eof = false;
+    boolean verified = false;
+
+    SignedDigestInputStream(InputStream in, SignedRequestHmac hmac) {
+        super(in);
+        this.hmac = hmac;
+        try {
+            this.md = MessageDigest.getInstance(SignedRequestHmac.SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new WebApplicationException("Unable to generate hash", Status.FORBIDDEN);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if ( b < 0 ) {
+            eof = true;
+        } else {
+            md.update((byte) b);
+            length++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if ( n < 0 ) {
+            eof = true;
+        } else if ( n > 0 ) {
+            md.update(b, off, n);
+            length += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes still have to be hashed
+        byte[] buffer = new byte[(int) Math.min(n, DRAIN_BUFFER_SIZE)];
+        long remaining = n;
+        while ( remaining > 0 ) {
+            int count = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if ( count < 0 )
+                break;
+            remaining -= count;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Finish hashing the body before the underlying stream goes away
+        try {
+            drain();
+        } finally {
+            eof = true;
+            super.close();
+        }
+    }
+
+    /**
+     * Read any remaining body bytes, then verify the body hash and the full
+     * request signature. Only the first call does any work.
+     *
+     * @throws IOException if the remaining body can not be read
+     * @throws WebApplicationException if the signature is invalid
+     */
+    void verify() throws IOException {
+        if ( verified )
+            return;
+
+        drain();
+        verified = true;
+        hmac.verifyBodyDigest(md.digest(), length)
+            .verifyFullSignature();
+    }
+
+    private void drain() throws IOException {
+        if ( eof )
+            return;
+
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        while ( read(buffer, 0, buffer.length) >= 0 ) {
+            // hashed by read
+        }
+    }
+}
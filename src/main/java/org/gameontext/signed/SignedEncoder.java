@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Per-thread scratch space for hashing signature elements.
+ *
+ * Strings are UTF-8 encoded into a reusable buffer which is fed straight to
+ * the {@link Mac} or {@link MessageDigest}, rather than allocating a byte
+ * array per value. Most of what we hash (methods, paths, dates, Base64 hashes)
+ * is ASCII, which is copied without going through the CharsetEncoder at all.
+ *
+ * Verification compares raw digests in constant time: the incoming Base64 value
+ * is decoded into a reused array, rather than encoding the computed digest.
+ *
+ * Instances are obtained with {@link #get()} and must stay on the calling thread.
+ */
+final class SignedEncoder {
+
+    static final int BUFFER_SIZE = 512;
+
+    /** length of HmacSHA256 and SHA-256 output */
+    static final int DIGEST_LENGTH = 32;
+
+    /** length of Base64 encoded HmacSHA256 and SHA-256 output */
+    static final int BASE64_LENGTH = 44;
+
+    private static final ThreadLocal<SignedEncoder> local = ThreadLocal.withInitial(SignedEncoder::new);
+
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    final byte[] digest = new byte[DIGEST_LENGTH];
+    final byte[] expected = new byte[DIGEST_LENGTH];
+    final byte[] encoded = new byte[BASE64_LENGTH];
+
+    // Same substitution behavior as String.getBytes(UTF-8)
+    final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private MessageDigest sha256;
+
+    // Target of the current update: exactly one is set
+    private Mac mac;
+    private MessageDigest md;
+
+    private SignedEncoder() {
+    }
+
+    static SignedEncoder get() {
+        return local.get();
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset and ready for update
+     * @throws NoSuchAlgorithmException
+     */
+    MessageDigest sha256() throws NoSuchAlgorithmException {
+        if ( sha256 == null ) {
+            sha256 = MessageDigest.getInstance(SignedRequestHmac.SHA_256);
+        } else {
+            sha256.reset();
+        }
+        return sha256;
+    }
+
+    void update(Mac mac, String value) {
+        this.mac = mac;
+        encode(value);
+        this.mac = null;
+    }
+
+    void update(MessageDigest md, String value) {
+        this.md = md;
+        encode(value);
+        this.md = null;
+    }
+
+    /**
+     * Finish the Mac into the shared digest array
+     * @return Base64 encoded hmac
+     */
+    String finish(Mac mac) {
+        doFinal(mac);
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * Finish the MessageDigest into the shared digest array
+     * @return Base64 encoded hash
+     */
+    String finish(MessageDigest md) {
+        doFinal(md);
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * Finish the Mac, and compare the result with a Base64 encoded value
+     * @param mac Mac updated with the signed values
+     * @param value Base64 encoded hmac from the message
+     * @return true if they match
+     */
+    boolean matches(Mac mac, String value) {
+        doFinal(mac);
+        return matches(digest, value, 0);
+    }
+
+    /**
+     * Finish the MessageDigest, and compare the result with a Base64 encoded value
+     * @param md MessageDigest updated with the hashed values
+     * @param value String containing the Base64 encoded hash from the message
+     * @param start Start of the hash in value: the hash runs to the end of the String
+     * @return true if they match
+     */
+    boolean matches(MessageDigest md, String value, int start) {
+        doFinal(md);
+        return matches(digest, value, start);
+    }
+
+    /**
+     * Compare a digest with a Base64 encoded value, in constant time.
+     * @param actual Computed digest
+     * @param value String containing the Base64 encoded digest from the message
+     * @param start Start of the digest in value: the digest runs to the end of the String
+     * @return true if they match
+     */
+    boolean matches(byte[] actual, String value, int start) {
+        return decode(value, start) && MessageDigest.isEqual(actual, expected);
+    }
+
+    private void doFinal(Mac mac) {
+        try {
+            mac.doFinal(digest, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e); // digest is sized for HmacSHA256
+        }
+    }
+
+    private void doFinal(MessageDigest md) {
+        try {
+            md.digest(digest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e); // digest is sized for SHA-256
+        }
+    }
+
+    /**
+     * @param value String to hash
+     * @return SHA-256 digest of the UTF-8 encoded value, in the shared digest array
+     * @throws NoSuchAlgorithmException
+     */
+    byte[] sha256(String value) throws NoSuchAlgorithmException {
+        MessageDigest md = sha256();
+        update(md, value);
+        doFinal(md);
+        return digest;
+    }
+
+    /**
+     * Decode a Base64 encoded digest into the expected array
+     * @return false if the value is not a Base64 encoded digest
+     */
+    boolean decode(String value, int start) {
+        if ( value == null || value.length() - start != BASE64_LENGTH ) {
+            return false;
+        }
+        for (int i = 0; i < BASE64_LENGTH; i++) {
+            char c = value.charAt(start + i);
+            if ( c >= 0x80 ) {
+                return false;
+            }
+            encoded[i] = (byte) c;
+        }
+        try {
+            // the decoder ignores the unused low bits of the last character: only the
+            // canonical encoding is accepted, as before, so a digest has one spelling
+            return Base64.getDecoder().decode(encoded, expected) == DIGEST_LENGTH
+                    && (sextet(encoded[BASE64_LENGTH - 2]) & 0x3) == 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the 6 bit value of a Base64 character that the decoder has accepted
+     */
+    private static int sextet(byte c) {
+        if ( c >= 'A' && c <= 'Z' ) {
+            return c - 'A';
+        }
+        if ( c >= 'a' && c <= 'z' ) {
+            return c - 'a' + 26;
+        }
+        if ( c >= '0' && c <= '9' ) {
+            return c - '0' + 52;
+        }
+        return c == '+' ? 62 : 63;
+    }
+
+    private void encode(String value) {
+        byte[] bytes = buffer.array();
+        int pos = buffer.position();
+        int len = value.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if ( c >= 0x80 ) {
+                buffer.position(pos);
+                encodeSlow(value, i);
+                return;
+            }
+            if ( pos == bytes.length ) {
+                buffer.position(pos);
+                drain();
+                pos = 0;
+            }
+            bytes[pos++] = (byte) c;
+        }
+
+        buffer.position(pos);
+        drain();
+    }
+
+    private void encodeSlow(String value, int start) {
+        CharBuffer chars = CharBuffer.wrap(value, start, value.length());
+        encoder.reset();
+
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, buffer, true);
+            if ( result.isOverflow() ) {
+                drain();
+            }
+        } while (result.isOverflow());
+
+        do {
+            result = encoder.flush(buffer);
+            if ( result.isOverflow() ) {
+                drain();
+            }
+        } while (result.isOverflow());
+
+        drain();
+    }
+
+    private void drain() {
+        buffer.flip();
+        if ( mac != null ) {
+            mac.update(buffer);
+        } else {
+            md.update(buffer);
+        }
+        buffer.clear();
+    }
+}
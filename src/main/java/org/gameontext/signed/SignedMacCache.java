@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cache of HmacSHA256 {@link Mac} instances that have already been keyed
+ * with a shared secret.
+ *
+ * Looking up the provider and expanding the key costs more than signing the
+ * handful of values in a request, so that is done once per secret. Each
+ * thread then works with its own clone of the keyed prototype, as a Mac
+ * can not be shared between threads.
+ *
+ * Entries are keyed by the secret itself, so a changed secret simply gets a
+ * new entry. Use {@link #invalidate(String)} when a secret is retired to drop
+ * the old key material from every thread.
+ *
+ * When the cache is full, the least recently used prototype is dropped. The
+ * shared prototypes are only consulted when a thread has no clone of its own,
+ * so the lock guarding them is off the common path. A thread that no longer
+ * holds a clone makes a new one from the prototype, which is much cheaper
+ * than keying a new Mac.
+ */
+public final class SignedMacCache {
+
+    /** maximum number of keyed prototypes retained */
+    static final int MAX_SECRETS = 4096;
+
+    /** maximum number of keyed Mac instances retained by each thread */
+    static final int MAX_THREAD_SECRETS = 64;
+
+    /** keyed prototypes, only ever cloned (never updated): guarded by itself */
+    static final Prototypes prototypes = new Prototypes();
+
+    /** bumped on invalidation so threads discard their clones */
+    static final AtomicInteger generation = new AtomicInteger(0);
+
+    static final ThreadLocal<ThreadMacs> threadMacs = ThreadLocal.withInitial(ThreadMacs::new);
+
+    private SignedMacCache() {
+    }
+
+    /**
+     * Drop any cached key material for the given secret.
+     * @param secret Retired shared secret
+     */
+    public static void invalidate(String secret) {
+        if ( secret == null ) {
+            return;
+        }
+        synchronized (prototypes) {
+            if ( prototypes.remove(secret) == null ) {
+                return;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Drop all cached key material.
+     */
+    public static void clear() {
+        synchronized (prototypes) {
+            prototypes.clear();
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Get a Mac keyed with the given secret for use by the calling thread.
+     * The returned instance is reset, and must not be handed to another thread.
+     *
+     * @param secret Shared secret
+     * @return keyed Mac, ready for update
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    static Mac get(String secret) throws NoSuchAlgorithmException, InvalidKeyException {
+        ThreadMacs local = threadMacs.get();
+        int current = generation.get();
+        if ( local.generation != current ) {
+            local.clear();
+            local.generation = current;
+        }
+
+        Mac mac = local.get(secret);
+        if ( mac == null ) {
+            mac = cloneOf(prototype(secret), secret);
+            local.put(secret, mac);
+        } else {
+            mac.reset(); // in case a previous caller bailed out mid-update
+        }
+        return mac;
+    }
+
+    static Mac newMac(String secret) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(SignedRequestHmac.HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), SignedRequestHmac.HMAC_ALGORITHM));
+        return mac;
+    }
+
+    private static Mac prototype(String secret) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac prototype;
+        synchronized (prototypes) {
+            prototype = prototypes.get(secret);
+        }
+        if ( prototype == null ) {
+            // keyed outside the lock: racing threads may both key the secret, and one wins
+            prototype = newMac(secret);
+            synchronized (prototypes) {
+                Mac existing = prototypes.putIfAbsent(secret, prototype);
+                if ( existing != null ) {
+                    prototype = existing;
+                }
+            }
+        }
+        return prototype;
+    }
+
+    private static Mac cloneOf(Mac prototype, String secret) throws NoSuchAlgorithmException, InvalidKeyException {
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            // Not all providers support clone: key a fresh instance instead
+            return newMac(secret);
+        }
+    }
+
+    /**
+     * LRU of keyed prototypes, shared by all threads.
+     */
+    static final class Prototypes extends LinkedHashMap<String, Mac> {
+        private static final long serialVersionUID = 1L;
+
+        Prototypes() {
+            super(MAX_SECRETS * 2, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mac> eldest) {
+            // clones held by threads stay valid: the secret has not been retired
+            return size() > MAX_SECRETS;
+        }
+    }
+
+    /**
+     * Small per-thread LRU of keyed Mac instances.
+     */
+    static final class ThreadMacs extends LinkedHashMap<String, Mac> {
+        private static final long serialVersionUID = 1L;
+
+        int generation = SignedMacCache.generation.get();
+
+        ThreadMacs() {
+            super(MAX_THREAD_SECRETS * 2, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mac> eldest) {
+            return size() > MAX_THREAD_SECRETS;
+        }
+    }
+}
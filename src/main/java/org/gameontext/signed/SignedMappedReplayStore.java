@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Replay store in a memory-mapped file, shared by every process on the host
+ * that maps the same file.
+ *
+ * The file holds a fixed number of 24 byte slots (key and expiry time), and is
+ * never resized. A signature may be stored in any of the {@link #PROBES} slots
+ * from its home slot, and all of them are searched: there is no other index,
+ * so expired slots can simply be reused.
+ *
+ * Processes coordinate with compare-and-set on the mapped expiry words only.
+ * A slot is claimed by swapping its expiry for a negative claim time, then the
+ * key is written and the expiry published. The adder then checks the probe
+ * window again: if the same signature was published by another process in
+ * the meantime, both report a duplicate, so a racing replay is refused rather
+ * than accepted twice. A claim left behind by a process that died is reclaimed
+ * after {@link #CLAIM_TIMEOUT_MS}.
+ *
+ * The Bloom filter hint is ignored: another process may have added the signature.
+ */
+final class SignedMappedReplayStore implements SignedReplayStore {
+
+    static final long MAGIC = 0x67616d656f6e5231L; // "gameonR1"
+    static final int HEADER_BYTES = 64;
+    static final int SLOT_BYTES = 3 * Long.BYTES;
+
+    /** number of slots, from its home slot, in which a signature may be stored */
+    static final int PROBES = 32;
+
+    /** a slot claimed for longer than this was abandoned, and may be claimed again */
+    static final long CLAIM_TIMEOUT_MS = 1000;
+
+    /** largest number of slots that fit in one mapping */
+    static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_BYTES) / SLOT_BYTES;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    final Path path;
+    final int slots;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /** next slot to sweep: only used by the sweeping thread */
+    private int cursor = 0;
+
+    /**
+     * Map the store, creating the file if it does not exist.
+     *
+     * @param path File shared by all processes
+     * @param slots Number of slots: must match the file, if it exists
+     * @throws IOException if the file can not be mapped, or was created with a different number of slots
+     */
+    SignedMappedReplayStore(Path path, int slots) throws IOException {
+        if ( slots < PROBES || slots > MAX_SLOTS ) {
+            throw new IllegalArgumentException("Replay store slots must be between " + PROBES + " and " + MAX_SLOTS);
+        }
+        this.path = path;
+        this.slots = slots;
+
+        long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(2 * Long.BYTES).order(ByteOrder.nativeOrder());
+                if ( channel.size() == 0 ) {
+                    header.putLong(MAGIC).putLong(slots).flip();
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1); // sparse, zero filled
+                    channel.write(header, 0);
+                } else {
+                    channel.read(header, 0);
+                    header.flip();
+                    if ( header.remaining() < header.capacity() || header.getLong() != MAGIC ) {
+                        throw new IOException(path + " is not a replay store");
+                    }
+                    long existing = header.getLong();
+                    if ( existing != slots || channel.size() != size ) {
+                        throw new IOException(path + " was created with " + existing + " slots, not " + slots);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Result add(long k0, long k1, long expiresAt, long now, boolean absent) {
+        expiresAt = Math.max(expiresAt, 1);
+        int home = Math.floorMod(k1 ^ (k1 >>> 32), slots);
+
+        while ( true ) {
+            int free = -1;
+            long freeExpiry = 0;
+            for (int p = 0; p < PROBES; p++) {
+                int i = slot(home, p);
+                long expiry = expiry(i);
+                if ( expiry >= now && matches(i, k0, k1, expiry) ) {
+                    return Result.DUPLICATE;
+                }
+                if ( free < 0 && reusable(expiry, now) ) {
+                    free = i;
+                    freeExpiry = expiry;
+                }
+            }
+            if ( free < 0 ) {
+                return Result.FULL;
+            }
+            if ( !LONGS.compareAndSet(buffer, expiryOffset(free), freeExpiry, -Math.max(now, 1)) ) {
+                continue; // claimed by someone else: look again
+            }
+
+            LONGS.setVolatile(buffer, offset(free), k0);
+            LONGS.setVolatile(buffer, offset(free) + Long.BYTES, k1);
+            LONGS.setVolatile(buffer, expiryOffset(free), expiresAt);
+
+            // the signature may have been published by a racing adder, possibly in another process
+            for (int p = 0; p < PROBES; p++) {
+                int i = slot(home, p);
+                if ( i != free && published(i, k0, k1, now) ) {
+                    return Result.DUPLICATE;
+                }
+            }
+            return Result.ADDED;
+        }
+    }
+
+    /**
+     * Release expired slots (and abandoned claims), starting where the last sweep
+     * stopped, until all slots have been checked or the time budget is spent.
+     */
+    @Override
+    public int sweep(long now, long budgetNanos) {
+        long start = System.nanoTime();
+        int removed = 0;
+        for (int n = 0; n < slots; n++) {
+            long expiry = expiry(cursor);
+            if ( expiry != 0 && reusable(expiry, now)
+                    && LONGS.compareAndSet(buffer, expiryOffset(cursor), expiry, 0L) ) {
+                removed++;
+            }
+            cursor = cursor + 1 == slots ? 0 : cursor + 1;
+            if ( (n & 1023) == 1023 && System.nanoTime() - start >= budgetNanos ) {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size(long now) {
+        int size = 0;
+        for (int i = 0; i < slots; i++) {
+            if ( expiry(i) >= now ) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long depth() {
+        long depth = 0;
+        for (int i = 0; i < slots; i++) {
+            if ( expiry(i) != 0 ) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            SignedLogger.writeLog(Level.FINE, this, "Unable to close " + path, e);
+        }
+    }
+
+    /**
+     * @return true if slot i holds the signature, published and unexpired,
+     *      after waiting for a claim of the slot to complete: a claim that is
+     *      not completed within the claim timeout was abandoned
+     */
+    private boolean published(int i, long k0, long k1, long now) {
+        long start = System.nanoTime();
+        long expiry;
+        while ( (expiry = expiry(i)) < 0 ) {
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if ( reusable(expiry, now + waited) ) {
+                return false; // the adder died (or stalled) between claiming and publishing
+            }
+            Thread.onSpinWait();
+        }
+        return expiry >= now && matches(i, k0, k1, expiry);
+    }
+
+    /**
+     * @return true if slot i holds the key, and its expiry did not change while the key was read
+     */
+    private boolean matches(int i, long k0, long k1, long expiry) {
+        return (long) LONGS.getVolatile(buffer, offset(i)) == k0
+                && (long) LONGS.getVolatile(buffer, offset(i) + Long.BYTES) == k1
+                && expiry(i) == expiry;
+    }
+
+    /**
+     * @return true for an empty or expired slot, or a claim that was abandoned
+     */
+    private static boolean reusable(long expiry, long now) {
+        if ( expiry < 0 ) {
+            return now + expiry >= CLAIM_TIMEOUT_MS;
+        }
+        return expiry < now;
+    }
+
+    private int slot(int home, int probe) {
+        int i = home + probe;
+        return i >= slots ? i - slots : i;
+    }
+
+    private long expiry(int i) {
+        return (long) LONGS.getVolatile(buffer, expiryOffset(i));
+    }
+
+    private static int offset(int i) {
+        return HEADER_BYTES + i * SLOT_BYTES;
+    }
+
+    private static int expiryOffset(int i) {
+        return offset(i) + 2 * Long.BYTES;
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable list of header or query parameter names, as used in the
+ * A;B;C;hashOfValues form of gameon-sig-headers and gameon-sig-params.
+ *
+ * Clients send only a handful of distinct name lists, so lists parsed from
+ * incoming headers are remembered in a small fixed size table, keyed by the
+ * A;B;C; prefix. A lookup hashes and compares the prefix in place: nothing is
+ * allocated unless the list has to be parsed.
+ */
+final class SignedNames {
+
+    /** number of remembered name lists: must be a power of two */
+    static final int CACHE_SIZE = 256;
+
+    /** number of slots examined for a given prefix */
+    static final int PROBES = 4;
+
+    private static final SignedNames[] cache = new SignedNames[CACHE_SIZE];
+
+    /** names joined with and followed by ';', e.g. "A;B;C;" */
+    final String prefix;
+
+    /** all names, in order */
+    final String[] names;
+
+    /** names whose values are hashed when signing: gameon-* headers are skipped */
+    final String[] hashed;
+
+    private SignedNames(String prefix, String[] names) {
+        this.prefix = prefix;
+        this.names = names;
+
+        List<String> values = new ArrayList<>(names.length);
+        for (String name : names) {
+            if ( !name.startsWith(SignedRequestHmac.GAMEON_HEADER_PREFIX) ) {
+                values.add(name);
+            }
+        }
+        this.hashed = values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @param names Header or parameter names
+     * @return immutable copy of the names, or null if there are none
+     */
+    static SignedNames of(List<String> names) {
+        if ( names == null || names.isEmpty() ) {
+            return null;
+        }
+        String[] copy = names.toArray(new String[names.size()]);
+        return new SignedNames(String.join(";", copy) + ";", copy);
+    }
+
+    /**
+     * Find or parse the names in a gameon-sig-headers or gameon-sig-params value.
+     * Names are split as by {@code header.substring(0, end).split(";")}.
+     *
+     * @param header A;B;C;hashOfValues header value
+     * @param end Position of the last ';' in the header
+     * @return names, shared with other requests using the same list
+     */
+    static SignedNames parse(String header, int end) {
+        int length = end + 1;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + header.charAt(i);
+        }
+        int home = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+        int free = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (home + i) & (CACHE_SIZE - 1);
+            SignedNames names = cache[slot];
+            if ( names == null ) {
+                if ( free < 0 )
+                    free = slot;
+            } else if ( names.prefix.length() == length && header.startsWith(names.prefix) ) {
+                return names;
+            }
+        }
+
+        SignedNames names = new SignedNames(header.substring(0, length), split(header, end));
+        // Racing threads may replace each other's entries: harmless
+        cache[free < 0 ? home : free] = names;
+        return names;
+    }
+
+    /**
+     * Single pass equivalent of {@code value.substring(0, end).split(";")}:
+     * trailing empty names are dropped. Names are not interned: they are read
+     * before the signature is verified, and the name list cache already shares them.
+     */
+    static String[] split(String value, int end) {
+        if ( end == 0 ) {
+            return new String[] { "" };
+        }
+
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= end; i++) {
+            if ( i == end || value.charAt(i) == ';' ) {
+                names.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+
+        int count = names.size();
+        while ( count > 0 && names.get(count - 1).isEmpty() ) {
+            count--;
+        }
+        return names.subList(0, count).toArray(new String[count]);
+    }
+}
@@ -15,23 +15,40 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
+import javax.enterprise.inject.spi.CDI;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.ext.ReaderInterceptor;
 import javax.ws.rs.ext.ReaderInterceptorContext;
 
 public class SignedReaderInterceptor implements ReaderInterceptor {
 
+    /** looked up on first use if not provided */
+    private volatile SignedRequestTimedCache timedCache;
+
     public SignedReaderInterceptor() {
+        this(null);
     }
 
-    /* (non-Javadoc)
+    /**
+     * @param timedCache Recently seen signatures, checked once the signature is verified,
+     *      or null to look up the application's cache when it is first needed
+     */
+    public SignedReaderInterceptor(SignedRequestTimedCache timedCache) {
+        this.timedCache = timedCache;
+    }
+
+    /**
+     * If there is a saved/pending inbound request hmac, hash the request body
+     * as the entity provider reads it. The body hash and full signature are
+     * verified once the body has been read, before the entity is returned
+     * for dispatch to the resource method. Only then is the signature checked
+     * against (and added to) the recently seen signatures. The request date is
+     * checked again first: a body that took longer to arrive than the request
+     * may live could otherwise outlast the record of the original request.
+     *
      * @see javax.ws.rs.ext.ReaderInterceptor#aroundReadFrom(javax.ws.rs.ext.ReaderInterceptorContext)
      */
     @Override
@@ -39,24 +56,34 @@ public class SignedReaderInterceptor implements ReaderInterceptor {
 
         SignedRequestHmac hmac = (SignedRequestHmac) context.getProperty("SignedRequestHmac");
 
-        if ( hmac != null ) {
-
-            // Fully read request body
-            BufferedReader buffer = new BufferedReader(new InputStreamReader(context.getInputStream(), SignedRequestHmac.UTF8));
-            String body = buffer.lines().collect(Collectors.joining("\n"));
-            byte[] bodyBytes = body.getBytes(SignedRequestHmac.UTF8);
-
-            try {
-                // Validate HMAC signature (including body hash)
-                hmac.verifyBodyHash(bodyBytes)
-                    .verifyFullSignature();
-            } finally {
-                // we've read the body in, set the stream for the context to read from
-                // what we read...
-                context.setInputStream(new ByteArrayInputStream(bodyBytes));
-            }
-            SignedLogger.writeLog(Level.FINEST, this, "READER INTERCEPTOR: {0} {1}", hmac);
+        if ( hmac == null ) {
+            return context.proceed();
+        }
+
+        SignedDigestInputStream body = new SignedDigestInputStream(context.getInputStream(), hmac);
+        context.setInputStream(body);
+
+        Object entity;
+        try {
+            entity = context.proceed();
+        } finally {
+            // Validate HMAC signature (including body hash). This takes precedence
+            // over any failure the entity provider had with the (unverified) body.
+            body.verify();
+        }
+        hmac.checkExpiry()
+            .checkDuplicate(timedCache());
+        SignedLogger.writeLog(Level.FINEST, this, "READER INTERCEPTOR: {0}", hmac);
+        return entity;
+    }
+
+    private SignedRequestTimedCache timedCache() {
+        SignedRequestTimedCache cache = timedCache;
+        if ( cache == null ) {
+            // not a cdi target (see SignedRequestFeature), so look it up programmatically
+            cache = CDI.current().select(SignedRequestTimedCache.class).get();
+            timedCache = cache;
         }
-        return context.proceed();
+        return cache;
     }
 }
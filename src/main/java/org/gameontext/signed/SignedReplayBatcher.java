@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Queues new replay signatures, and hands them to a {@link Sink} in batches
+ * from a background thread: every {@code flushMs}, or sooner when a batch is full.
+ * Used to replicate signatures to peers, and to append them to a snapshot.
+ */
+final class SignedReplayBatcher implements AutoCloseable {
+
+    static final int ENTRY_BYTES = 3 * Long.BYTES;
+
+    /** receives each batch, on the batcher's thread */
+    @FunctionalInterface
+    interface Sink {
+        /**
+         * @param batch Buffer holding the batch's entries (key and expiry time) after the
+         *      reserved header bytes, positioned after the last entry
+         * @param count Number of entries in the batch
+         */
+        void flush(ByteBuffer batch, int count);
+    }
+
+    private final BlockingQueue<long[]> queue;
+    private final int headerBytes;
+    private final int maxBatch;
+    private final ByteBuffer batch;
+    private final long flushNanos;
+    private final Sink sink;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param name Thread name
+     * @param maxQueued Signatures that may wait to be sent: {@link #offer} fails beyond this
+     * @param headerBytes Bytes reserved at the start of each batch
+     * @param maxBatch Most entries in a batch
+     * @param trailerBytes Bytes reserved after the entries
+     * @param flushMs Longest time a signature waits before its batch is flushed
+     * @param sink Receives each batch
+     */
+    SignedReplayBatcher(String name, int maxQueued, int headerBytes, int maxBatch, int trailerBytes, long flushMs, Sink sink) {
+        this.queue = new ArrayBlockingQueue<>(maxQueued);
+        this.headerBytes = headerBytes;
+        this.maxBatch = maxBatch;
+        this.batch = ByteBuffer.allocate(headerBytes + maxBatch * ENTRY_BYTES + trailerBytes);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushMs));
+        this.sink = sink;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return false if the queue is full, and the signature was dropped
+     */
+    boolean offer(long k0, long k1, long expiresAt) {
+        return queue.offer(new long[] { k0, k1, expiresAt });
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while ( running ) {
+                long[] entry = queue.poll(1, TimeUnit.SECONDS);
+                if ( entry == null ) {
+                    continue;
+                }
+                long deadline = System.nanoTime() + flushNanos;
+                batch.clear();
+                batch.position(headerBytes);
+                int count = 0;
+                do {
+                    batch.putLong(entry[0]).putLong(entry[1]).putLong(entry[2]);
+                    count++;
+                    long wait = deadline - System.nanoTime();
+                    entry = count < maxBatch && wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                } while ( entry != null );
+
+                try {
+                    sink.flush(batch, count);
+                } catch (RuntimeException e) {
+                    // keep the thread alive
+                    SignedLogger.writeLog(Level.WARNING, this, "Unable to flush " + count + " hmacs", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+}
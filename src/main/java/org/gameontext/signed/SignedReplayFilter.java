@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Time-partitioned Bloom filter in front of the {@link SignedReplayStore}.
+ *
+ * Signatures are recorded in the current generation, and looked up in the
+ * current and previous generations. A generation is started every replay
+ * window, and the one before the previous is dropped: everything recorded in
+ * it has expired.
+ *
+ * All of a signature's bits are in a single 64 bit word, so adding them is a
+ * single compare-and-set: exactly one of several racing callers sees them go
+ * from not all set to all set. That caller knows the signature is new, and can
+ * add it to the store without looking for a duplicate. Everyone else has a
+ * possible duplicate, which the store decides.
+ *
+ * Packing every bit into one word costs more false positives than a classic
+ * Bloom filter of the same size, as words fill unevenly, so the number of bits
+ * per signature and the capacity use the false positive rate of this blocked
+ * layout rather than the classic formula.
+ *
+ * Signatures that are kept longer than the replay window would outlive their
+ * generation, so while any of them may still be live, no signature is reported
+ * as new.
+ */
+final class SignedReplayFilter {
+
+    /** maximum number of bits set per signature: 6 bits of the key select each one */
+    static final int MAX_HASHES = 10;
+
+    static final class Generation {
+        final long started;
+        final AtomicLongArray words;
+
+        Generation(long started, int words) {
+            this.started = started;
+            this.words = new AtomicLongArray(words);
+        }
+    }
+
+    /** current and previous generations, replaced as a whole */
+    static final class Generations {
+        final Generation current;
+        final Generation previous;
+
+        Generations(Generation current, Generation previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    final long window;
+    final int words;
+    final int hashes;
+
+    /** signatures per word at the target false positive rate */
+    final double keysPerWord;
+
+    private final AtomicReference<Generations> generations;
+
+    /** no signature is new until this time: a longer-lived signature may still be live */
+    private final AtomicLong bypassUntil = new AtomicLong(0);
+
+    /**
+     * @param window Replay window in milliseconds: the longest time a signature is kept
+     * @param fpp Target false positive rate, e.g. 0.01
+     * @param maxBytes Memory budget for both generations
+     * @param now Current time in epoch milliseconds
+     */
+    SignedReplayFilter(long window, double fpp, long maxBytes, long now) {
+        this.window = window;
+        this.words = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / 2 / Long.BYTES));
+
+        // the number of bits that holds the most signatures at the target rate
+        int best = 1;
+        double most = keysPerWord(fpp, 1);
+        for (int k = 2; k <= MAX_HASHES; k++) {
+            double keys = keysPerWord(fpp, k);
+            if ( keys > most ) {
+                best = k;
+                most = keys;
+            }
+        }
+        this.hashes = best;
+        this.keysPerWord = most;
+
+        this.generations = new AtomicReference<>(new Generations(new Generation(now, words), null));
+    }
+
+    /**
+     * @return approximate number of signatures per generation before the target false positive rate is exceeded
+     */
+    long capacity() {
+        return (long) (words * keysPerWord);
+    }
+
+    /**
+     * @return largest average number of signatures per word that keeps the false positive rate within fpp
+     */
+    static double keysPerWord(double fpp, int hashes) {
+        double low = 0;
+        double high = Long.SIZE;
+        for (int i = 0; i < 50; i++) {
+            double mid = (low + high) / 2;
+            if ( falsePositiveRate(mid, hashes) <= fpp ) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * False positive rate of a filter holding the given average number of
+     * signatures per word. The number of signatures in a word is Poisson
+     * distributed; each sets {@code hashes} random bits of the 64, some of
+     * them the same bit.
+     *
+     * @param keysPerWord Average number of signatures per word
+     * @param hashes Bits selected per signature
+     */
+    static double falsePositiveRate(double keysPerWord, int hashes) {
+        // distribution of the number of distinct bits a signature selects
+        double[] distinct = new double[hashes + 1];
+        distinct[0] = 1;
+        for (int k = 0; k < hashes; k++) {
+            for (int d = k + 1; d > 0; d--) {
+                distinct[d] = distinct[d] * d / Long.SIZE + distinct[d - 1] * (Long.SIZE - d + 1) / Long.SIZE;
+            }
+            distinct[0] = 0;
+        }
+
+        double rate = 0;
+        double poisson = Math.exp(-keysPerWord);
+        int last = (int) (keysPerWord + 12 * Math.sqrt(keysPerWord) + 30);
+        for (int n = 0; n <= last; n++) {
+            // probability that a given bit is set after n signatures
+            double set = 1 - Math.pow(1 - 1.0 / Long.SIZE, (double) n * hashes);
+            double match = 0;
+            for (int d = 1; d <= hashes; d++) {
+                match += distinct[d] * Math.pow(set, d);
+            }
+            rate += poisson * match;
+            poisson *= keysPerWord / (n + 1);
+        }
+        return rate;
+    }
+
+    /**
+     * Record a signature.
+     *
+     * @param k0 First 64 bits of the signature
+     * @param k1 Second 64 bits of the signature
+     * @param expiresAt Time at which the signature expires, in epoch milliseconds
+     * @param now Current time in epoch milliseconds
+     * @return true if the signature is definitely new, false if it may be a duplicate
+     */
+    boolean add(long k0, long k1, long expiresAt, long now) {
+        if ( expiresAt - now > window ) {
+            bypassUntil.accumulateAndGet(expiresAt, Math::max);
+            return false;
+        }
+
+        Generations g = generations(now);
+        int index = index(k0);
+        long mask = mask(k1);
+
+        if ( !set(g.current.words, index, mask) ) {
+            return false;
+        }
+        if ( g.previous != null && contains(g.previous.words, index, mask) ) {
+            return false;
+        }
+        Generations after = generations.get();
+        if ( after != g && contains(after.current.words, index, mask) ) {
+            return false; // someone else added it after a new generation started
+        }
+        return now > bypassUntil.get();
+    }
+
+    private Generations generations(long now) {
+        Generations g = generations.get();
+        while ( now - g.current.started >= window ) {
+            Generations next = new Generations(new Generation(now, words), g.current);
+            if ( generations.compareAndSet(g, next) ) {
+                return next;
+            }
+            g = generations.get();
+        }
+        return g;
+    }
+
+    private int index(long k0) {
+        return (int) Math.floorMod(k0, (long) words);
+    }
+
+    private long mask(long k1) {
+        long mask = 0;
+        for (int i = 0; i < hashes; i++) {
+            mask |= 1L << (k1 >>> (i * 6));
+        }
+        return mask;
+    }
+
+    /**
+     * @return true if this call set the last of the bits
+     */
+    private static boolean set(AtomicLongArray words, int index, long mask) {
+        long word;
+        do {
+            word = words.get(index);
+            if ( (word & mask) == mask ) {
+                return false;
+            }
+        } while ( !words.compareAndSet(index, word, word | mask) );
+        return true;
+    }
+
+    private static boolean contains(AtomicLongArray words, int index, long mask) {
+        return (words.get(index) & mask) == mask;
+    }
+}
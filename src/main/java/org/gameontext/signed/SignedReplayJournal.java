@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Appends new replay signatures to a {@link SignedReplaySnapshot} file as they
+ * are added, so a process that stops without a final snapshot (killed, or out
+ * of memory) still knows the signatures it accepted before it stopped.
+ *
+ * New signatures are queued and written in batches by a background thread
+ * (every {@code flushMs}, or sooner when a batch is full), so at most the last
+ * few milliseconds of signatures are lost if the process dies. The file is not
+ * forced to disk after each batch: it survives the process, not the host.
+ *
+ * {@link #compact(SignedReplayStore, long)} rewrites the file with only the live
+ * signatures, and appending continues on the new file.
+ */
+final class SignedReplayJournal implements AutoCloseable {
+
+    /** signatures waiting to be written: more than this are dropped */
+    static final int MAX_QUEUED = 64 * 1024;
+    static final int MAX_BATCH = 2048;
+
+    private final Path path;
+    private final SignedReplayBatcher writer;
+
+    /** guarded by this */
+    private FileChannel channel;
+
+    final AtomicLong appended = new AtomicLong(0);
+    /** signatures not written: the queue was full, or the write failed */
+    final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Compact the file, then start appending to it.
+     *
+     * @param path Snapshot file
+     * @param store Store whose live signatures start the file
+     * @param now Current time in epoch milliseconds
+     * @param flushMs Longest time a new signature waits before it is written
+     * @throws IOException if the file can not be written
+     */
+    SignedReplayJournal(Path path, SignedReplayStore store, long now, long flushMs) throws IOException {
+        this.path = path;
+        compact(store, now);
+        this.writer = new SignedReplayBatcher("gameon-signed-replay-journal", MAX_QUEUED,
+                0, MAX_BATCH, 0, flushMs, this::flush);
+    }
+
+    /**
+     * Queue a new signature to be appended
+     */
+    void append(long k0, long k1, long expiresAt) {
+        if ( !writer.offer(k0, k1, expiresAt) ) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Replace the file with the live signatures of the store. Signatures
+     * appended while this runs are either in the store (and so in the new
+     * file), or are written to the new file afterwards.
+     *
+     * @return number of signatures written
+     * @throws IOException if the file can not be written: appending continues on the old file
+     */
+    synchronized int compact(SignedReplayStore store, long now) throws IOException {
+        int count = SignedReplaySnapshot.write(path, store, now);
+        FileChannel old = channel;
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if ( old != null ) {
+            old.close();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+        synchronized (this) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                SignedLogger.writeLog(Level.FINE, this, "Unable to close " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Writer thread: append each batch to the file.
+     */
+    private synchronized void flush(ByteBuffer batch, int count) {
+        batch.flip();
+        long size = -1;
+        try {
+            size = channel.size();
+            while ( batch.hasRemaining() ) {
+                channel.write(batch);
+            }
+            appended.addAndGet(count);
+        } catch (IOException e) {
+            dropped.addAndGet(count);
+            SignedLogger.writeLog(Level.WARNING, this, "Unable to append hmacs to " + path, e);
+            if ( size >= 0 && channel.isOpen() ) {
+                try {
+                    channel.truncate(size); // keep entries aligned for the next batch
+                } catch (IOException t) {
+                    SignedLogger.writeLog(Level.FINE, this, "Unable to truncate " + path, t);
+                }
+            }
+        }
+    }
+}
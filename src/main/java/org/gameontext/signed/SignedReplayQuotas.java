@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user limits on the number of signatures held in the replay cache.
+ *
+ * Each gameon-id may add a limited number of signatures per replay window.
+ * The count is a sliding window, approximated from the counts of the current
+ * and previous fixed windows.
+ */
+final class SignedReplayQuotas {
+
+    static final class Quota {
+        long windowStart;
+        int previous = 0;
+        int current = 0;
+
+        Quota(long now) {
+            this.windowStart = now;
+        }
+
+        synchronized boolean acquire(long now, int limit, long window) {
+            advance(now, window);
+            long remaining = window - (now - windowStart);
+            if ( current + previous * remaining / window >= limit ) {
+                return false;
+            }
+            current++;
+            return true;
+        }
+
+        synchronized void release() {
+            if ( current > 0 ) {
+                current--;
+            }
+        }
+
+        synchronized boolean idle(long now, long window) {
+            advance(now, window);
+            return current == 0 && previous == 0;
+        }
+
+        private void advance(long now, long window) {
+            long elapsed = now - windowStart;
+            if ( elapsed >= 2 * window ) {
+                previous = 0;
+                current = 0;
+                windowStart = now;
+            } else if ( elapsed >= window ) {
+                previous = current;
+                current = 0;
+                windowStart += window;
+            }
+        }
+    }
+
+    final int limit;
+    final long window;
+
+    private final ConcurrentHashMap<String, Quota> users = new ConcurrentHashMap<>();
+
+    /**
+     * @param limit Signatures per user per window
+     * @param window Window length in milliseconds
+     */
+    SignedReplayQuotas(int limit, long window) {
+        this.limit = limit;
+        this.window = window;
+    }
+
+    /**
+     * @param userId gameon-id
+     * @param now Current time in epoch milliseconds
+     * @return true if the user may add another signature
+     */
+    boolean acquire(String userId, long now) {
+        return users.computeIfAbsent(userId, k -> new Quota(now)).acquire(now, limit, window);
+    }
+
+    /**
+     * Return a signature that was not added after all (e.g. a duplicate)
+     * @param userId gameon-id
+     */
+    void release(String userId) {
+        Quota quota = users.get(userId);
+        if ( quota != null ) {
+            quota.release();
+        }
+    }
+
+    /**
+     * Forget users that have not added signatures for two windows
+     * @param now Current time in epoch milliseconds
+     */
+    void purge(long now) {
+        users.values().removeIf(quota -> quota.idle(now, window));
+    }
+
+    int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the replay cache's live signatures to a file, and loads them again,
+ * so a restarted process does not accept requests replayed from before the
+ * restart.
+ *
+ * The file is an 8 byte header followed by 24 bytes (key and expiry time) per
+ * signature. It is written to a temporary file that then replaces the snapshot,
+ * so a snapshot is never partly written. Expired signatures are skipped when
+ * the file is loaded.
+ */
+final class SignedReplaySnapshot {
+
+    static final long MAGIC = 0x67616d656f6e5331L; // "gameonS1"
+    static final int ENTRY_BYTES = 3 * Long.BYTES;
+
+    private SignedReplaySnapshot() {
+    }
+
+    /**
+     * @param path Snapshot file
+     * @param store Store to save
+     * @param now Current time in epoch milliseconds
+     * @return number of signatures written
+     * @throws IOException if the file can not be written
+     */
+    static int write(Path path, SignedReplayStore store, long now) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        int[] count = { 0 };
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_BYTES * 2048);
+            buffer.putLong(MAGIC);
+            try {
+                store.forEach(now, (k0, k1, expiresAt) -> {
+                    if ( buffer.remaining() < ENTRY_BYTES ) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putLong(k0).putLong(k1).putLong(expiresAt);
+                    count[0]++;
+                });
+                flush(channel, buffer);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * @param path Snapshot file
+     * @param visitor Receives each signature that has not expired
+     * @param now Current time in epoch milliseconds
+     * @return number of signatures read, or 0 if there is no snapshot (or it is empty)
+     * @throws IOException if the file can not be read, or is not a snapshot
+     */
+    static int read(Path path, SignedReplayStore.Visitor visitor, long now) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if ( size == 0 ) {
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if ( size < Long.BYTES || buffer.getLong() != MAGIC ) {
+                throw new IOException(path + " is not a replay snapshot");
+            }
+            int count = 0;
+            while ( buffer.remaining() >= ENTRY_BYTES ) {
+                long k0 = buffer.getLong();
+                long k1 = buffer.getLong();
+                long expiresAt = buffer.getLong();
+                if ( expiresAt >= now ) {
+                    visitor.accept(k0, k1, expiresAt);
+                    count++;
+                }
+            }
+            return count;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while ( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+}
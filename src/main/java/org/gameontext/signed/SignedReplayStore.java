@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+/**
+ * Storage for recently seen request signatures, behind {@link SignedRequestTimedCache}.
+ *
+ * A signature is identified by the first 128 bits of its raw hmac (k0, k1), and
+ * is kept until its expiry time. Implementations must be thread safe, and must
+ * not evict unexpired signatures to make room: they report {@link Result#FULL}
+ * instead.
+ *
+ * The store is chosen with the {@code gameon.signed.replay.store} property:
+ * {@code memory} (the default, a {@link SignedReplayTable}), {@code mapped}
+ * (a {@link SignedMappedReplayStore}, shared by processes on the same host),
+ * or the name of a class implementing this interface, with a constructor that
+ * takes the maximum number of entries (a long).
+ */
+public interface SignedReplayStore extends AutoCloseable {
+
+    enum Result {
+        /** the signature was added */
+        ADDED,
+        /** the signature is present and has not expired */
+        DUPLICATE,
+        /** the signature was not present, but there is no room to add it */
+        FULL
+    }
+
+    /** receives entries from {@link SignedReplayStore#forEach(long, Visitor)} */
+    @FunctionalInterface
+    interface Visitor {
+        void accept(long k0, long k1, long expiresAt);
+    }
+
+    /**
+     * Add a signature, unless it is already present and has not expired.
+     *
+     * @param k0 First 64 bits of the signature
+     * @param k1 Second 64 bits of the signature
+     * @param expiresAt Time at which the signature expires, in epoch milliseconds
+     * @param now Current time in epoch milliseconds
+     * @param absent true if the signature is known not to have been added before
+     *      (e.g. by a {@link SignedReplayFilter}): implementations may skip the lookup
+     * @return result
+     */
+    Result add(long k0, long k1, long expiresAt, long now, boolean absent);
+
+    /**
+     * Remove expired signatures, within a time budget.
+     *
+     * @param now Current time in epoch milliseconds
+     * @param budgetNanos Time budget
+     * @return number of signatures removed
+     */
+    int sweep(long now, long budgetNanos);
+
+    /**
+     * @param now Current time in epoch milliseconds
+     * @return number of signatures that have not expired
+     */
+    int size(long now);
+
+    /**
+     * @return number of signatures held, including expired signatures that have not been removed yet
+     */
+    long depth();
+
+    /**
+     * Visit the signatures that have not expired, e.g. to save them across a restart.
+     * Stores that keep their signatures elsewhere (in a file, or on other nodes)
+     * need not visit any.
+     *
+     * @param now Current time in epoch milliseconds
+     * @param visitor Receives each signature
+     */
+    default void forEach(long now, Visitor visitor) {
+    }
+
+    /**
+     * Release any resources held by the store
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.security.NoSuchAlgorithmException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Compact set of recently seen signatures, each with an expiry time.
+ *
+ * A signature is stored as the first 128 bits of its raw HMAC (decoded from
+ * Base64), or of the SHA-256 hash of the string for values that are not a
+ * Base64 encoded HmacSHA256. Keys and expiry times live in primitive arrays:
+ * an open-addressing table with linear probing, 24 bytes per slot.
+ *
+ * The table is split into independently locked stripes. Expired slots are
+ * reused by later inserts, and dropped whenever a stripe is rehashed, so a
+ * stripe only grows when it is filled with live signatures. {@link #sweep(long, long)}
+ * removes expired entries in place, and shrinks stripes that have emptied, so
+ * that rehashing on insert is rare.
+ *
+ * The number of entries can be capped. A full stripe is swept before an insert
+ * is refused: unexpired entries are never evicted to make room, as that would
+ * allow them to be replayed.
+ */
+final class SignedReplayTable implements SignedReplayStore {
+
+    /** number of independently locked stripes: must be a power of two */
+    static final int STRIPES = 16;
+
+    /** initial and minimum number of slots per stripe: must be a power of two */
+    static final int MIN_CAPACITY = 256;
+
+    /** a stripe is rehashed when more than this percentage of slots are in use */
+    static final int MAX_LOAD_PERCENT = 75;
+
+    /** after a rehash, no more than this percentage of slots are in use */
+    static final int REHASH_LOAD_PERCENT = 50;
+
+    /** bytes used by each slot */
+    static final int SLOT_BYTES = 3 * Long.BYTES;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** next stripe to sweep: only used by the sweeping thread */
+    private int cursor = 0;
+
+    SignedReplayTable() {
+        this(0);
+    }
+
+    /**
+     * @param maxEntries Maximum number of entries, or 0 for no limit
+     */
+    SignedReplayTable(long maxEntries) {
+        int limit = maxEntries <= 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (maxEntries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(limit);
+        }
+    }
+
+    /**
+     * Add a signature, unless it is already present and has not expired.
+     *
+     * @param signature Signature (Base64 encoded hmac)
+     * @param expiresAt Time at which the signature expires, in epoch milliseconds
+     * @param now Current time in epoch milliseconds
+     * @return true if the signature was added, false if it is a duplicate
+     */
+    boolean add(String signature, long expiresAt, long now) {
+        byte[] key = key(signature);
+        return add(getLong(key, 0), getLong(key, 8), expiresAt, now);
+    }
+
+    /**
+     * @see #add(String, long, long)
+     */
+    boolean add(long k0, long k1, long expiresAt, long now) {
+        return add(k0, k1, expiresAt, now, false) == Result.ADDED;
+    }
+
+    @Override
+    public Result add(long k0, long k1, long expiresAt, long now, boolean absent) {
+        return stripes[(int) k0 & (STRIPES - 1)].add(k0, k1, Math.max(expiresAt, 1), now, absent);
+    }
+
+    @Override
+    public long depth() {
+        long depth = 0;
+        for (Stripe stripe : stripes) {
+            depth += stripe.used();
+        }
+        return depth;
+    }
+
+    @Override
+    public int size(long now) {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.live(now);
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(long now, Visitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(now, visitor);
+        }
+    }
+
+    /**
+     * @return number of bytes used by the table's slots
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.capacity() * (long) SLOT_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Rehash every stripe, dropping expired signatures.
+     *
+     * @param now Current time in epoch milliseconds
+     * @return number of expired signatures dropped
+     */
+    int purge(long now) {
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            removed += stripe.purge(now);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove expired signatures, one stripe at a time, until all stripes
+     * have been swept or the time budget is spent. The next sweep continues
+     * from the next stripe. Called from one thread at a time.
+     *
+     * @param now Current time in epoch milliseconds
+     * @param budgetNanos Time budget: at least one stripe is swept
+     * @return number of expired signatures removed
+     */
+    @Override
+    public int sweep(long now, long budgetNanos) {
+        long start = System.nanoTime();
+        int removed = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            removed += stripes[cursor].sweep(now);
+            cursor = (cursor + 1) & (STRIPES - 1);
+            if ( System.nanoTime() - start >= budgetNanos ) {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param signature Signature (Base64 encoded hmac)
+     * @return raw hmac, or SHA-256 hash of the signature, in this thread's {@link SignedEncoder}
+     */
+    static byte[] key(String signature) {
+        SignedEncoder encoder = SignedEncoder.get();
+        if ( encoder.decode(signature, 0) ) {
+            return encoder.expected;
+        }
+        try {
+            return encoder.sha256(signature);
+        } catch (NoSuchAlgorithmException e) {
+            throw new WebApplicationException("Unable to generate hash", Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + Long.BYTES; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * One stripe of the table. Slot i holds its key in keys[2i] and keys[2i+1],
+     * and its expiry time in expires[i]: 0 for an empty slot.
+     */
+    static final class Stripe {
+        final int limit;
+
+        long[] keys = new long[MIN_CAPACITY * 2];
+        long[] expires = new long[MIN_CAPACITY];
+
+        /** slots that are not empty: live or expired */
+        int used = 0;
+
+        Stripe(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized Result add(long k0, long k1, long expiresAt, long now, boolean absent) {
+            int mask = expires.length - 1;
+            int slot = -1;
+
+            for (int i = index(k1) & mask; ; i = (i + 1) & mask) {
+                long expiry = expires[i];
+                if ( expiry == 0 ) {
+                    if ( slot < 0 ) {
+                        if ( used >= limit ) {
+                            if ( sweep(now) == 0 ) {
+                                return Result.FULL;
+                            }
+                            return add(k0, k1, expiresAt, now, absent);
+                        }
+                        if ( (used + 1) * 100L > expires.length * (long) MAX_LOAD_PERCENT ) {
+                            rehash(now);
+                            return add(k0, k1, expiresAt, now, absent);
+                        }
+                        slot = i;
+                        used++;
+                    }
+                    break;
+                }
+                if ( absent && expiry < now ) {
+                    slot = i;
+                    break;
+                }
+                if ( keys[2 * i] == k0 && keys[2 * i + 1] == k1 ) {
+                    if ( expiry >= now ) {
+                        return Result.DUPLICATE;
+                    }
+                    slot = i;
+                    break;
+                }
+                if ( expiry < now && slot < 0 ) {
+                    slot = i; // reuse the first expired slot, once we know the key is not present
+                }
+            }
+
+            keys[2 * slot] = k0;
+            keys[2 * slot + 1] = k1;
+            expires[slot] = expiresAt;
+            return Result.ADDED;
+        }
+
+        synchronized int used() {
+            return used;
+        }
+
+        synchronized int live(long now) {
+            int live = 0;
+            for (long expiry : expires) {
+                if ( expiry >= now ) {
+                    live++;
+                }
+            }
+            return live;
+        }
+
+        synchronized int capacity() {
+            return expires.length;
+        }
+
+        /**
+         * Visit a copy of the stripe, so the visitor runs without the lock
+         */
+        void forEach(long now, Visitor visitor) {
+            long[] keys;
+            long[] expires;
+            synchronized (this) {
+                keys = this.keys.clone();
+                expires = this.expires.clone();
+            }
+            for (int i = 0; i < expires.length; i++) {
+                if ( expires[i] >= now ) {
+                    visitor.accept(keys[2 * i], keys[2 * i + 1], expires[i]);
+                }
+            }
+        }
+
+        /**
+         * Remove expired entries in place, shifting later entries of the same
+         * probe sequence back (rather than leaving markers), then shrink the
+         * stripe if it is mostly empty.
+         */
+        synchronized int sweep(long now) {
+            int mask = expires.length - 1;
+            int removed = 0;
+            for (int i = 0; i < expires.length; i++) {
+                while ( expires[i] != 0 && expires[i] < now ) {
+                    delete(i, mask);
+                    removed++;
+                }
+            }
+            used -= removed;
+
+            if ( expires.length > MIN_CAPACITY && used * 100L < expires.length * (long) REHASH_LOAD_PERCENT / 4 ) {
+                rehash(now);
+            }
+            return removed;
+        }
+
+        /**
+         * Empty slot i, and move back any entry after it that could no longer
+         * be found past the gap.
+         */
+        private void delete(int i, int mask) {
+            int j = i;
+            while ( true ) {
+                expires[i] = 0;
+                int home;
+                do {
+                    j = (j + 1) & mask;
+                    if ( expires[j] == 0 ) {
+                        return;
+                    }
+                    home = index(keys[2 * j + 1]) & mask;
+                    // entry j stays if its home lies cyclically in (i, j]
+                } while ( i <= j ? (i < home && home <= j) : (i < home || home <= j) );
+
+                keys[2 * i] = keys[2 * j];
+                keys[2 * i + 1] = keys[2 * j + 1];
+                expires[i] = expires[j];
+                i = j;
+            }
+        }
+
+        synchronized int purge(long now) {
+            int before = used;
+            rehash(now);
+            return before - used;
+        }
+
+        /**
+         * Copy live entries into a table sized for them, growing or shrinking it.
+         */
+        private void rehash(long now) {
+            int live = live(now);
+            int capacity = MIN_CAPACITY;
+            while ( live * 100L >= capacity * (long) REHASH_LOAD_PERCENT ) {
+                capacity <<= 1;
+            }
+
+            long[] oldKeys = keys;
+            long[] oldExpires = expires;
+            keys = new long[capacity * 2];
+            expires = new long[capacity];
+            used = live;
+
+            int mask = capacity - 1;
+            for (int j = 0; j < oldExpires.length; j++) {
+                if ( oldExpires[j] >= now ) {
+                    int i = index(oldKeys[2 * j + 1]) & mask;
+                    while ( expires[i] != 0 ) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[2 * i] = oldKeys[2 * j];
+                    keys[2 * i + 1] = oldKeys[2 * j + 1];
+                    expires[i] = oldExpires[j];
+                }
+            }
+        }
+
+        private static int index(long k1) {
+            return (int) (k1 ^ (k1 >>> 32));
+        }
+    }
+}
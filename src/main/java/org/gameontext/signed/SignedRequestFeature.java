@@ -23,6 +23,8 @@ import javax.ws.rs.container.ResourceInfo;
 import javax.ws.rs.core.FeatureContext;
 import javax.ws.rs.ext.Provider;
 
+import org.eclipse.microprofile.config.ConfigProvider;
+
 import io.quarkus.arc.Unremovable;
 
 @Provider
@@ -34,7 +36,8 @@ public class SignedRequestFeature implements DynamicFeature {
 
     public SignedRequestFeature() {
         //provider/dynamicfeature isn't a cdi target, so cannot inject beans here, have to lookup programmatically
-        playerClient = CDI.current().select(SignedRequestSecretProvider.class).get();
+        playerClient = SignedCachingSecretProvider.wrap(CDI.current().select(SignedRequestSecretProvider.class).get(),
+                ConfigProvider.getConfig());
         timedCache = CDI.current().select(SignedRequestTimedCache.class).get();
     }
 
@@ -52,7 +55,7 @@ public class SignedRequestFeature implements DynamicFeature {
 
         if ( get == null && delete == null ) {
             // Signed requests only for messages with bodies!
-            context.register(new SignedReaderInterceptor());
+            context.register(new SignedReaderInterceptor(timedCache));
         }
     }
 }
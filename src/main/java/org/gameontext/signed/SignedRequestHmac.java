@@ -15,22 +15,15 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
-import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
 
@@ -53,6 +46,12 @@ public class SignedRequestHmac {
     /** how long to retain replays for, must be longer than the valid request period */
     static final Duration EXPIRES_REPLAY_MS = EXPIRES_REQUEST_MS .plus(Duration.ofMinutes(1));
 
+    /** {@link #EXPIRES_REQUEST_MS} in milliseconds, for expiry checks */
+    static final long EXPIRES_REQUEST_MILLIS = EXPIRES_REQUEST_MS.toMillis();
+
+    /** how long to retain replays for after a request's date has expired, to allow for clock differences */
+    static final Duration REPLAY_SKEW_MS = EXPIRES_REPLAY_MS.minus(EXPIRES_REQUEST_MS);
+
     protected final String secret;
     protected String signature;
 
@@ -109,30 +108,64 @@ public class SignedRequestHmac {
 
     /**
      * Check signature against recently seen signatures to guard against
-     * replay attacks.
+     * replay attacks. Call this only once the signature has been verified:
+     * the signature is remembered, and counts against the user's quota.
      *
      * @param timedCache Timed cache instance containing recently seen signatures
+     * @throws WebApplicationException if the request is a duplicate, or can not be remembered
      * @return this
      */
     public SignedRequestHmac checkDuplicate(SignedRequestTimedCache timedCache) throws WebApplicationException {
         if ( signature != null && "POST".equals(method) &&
-             timedCache.isDuplicate(signature, EXPIRES_REPLAY_MS) ) {
+             timedCache.isDuplicate(signature, replayExpiresAt(), userId) ) {
             throw new WebApplicationException("Duplicate request", Status.FORBIDDEN);
         }
         return this;
     }
 
     /**
-     * Make sure we only look at young requests
+     * A signature only needs to be remembered until {@link #checkExpiry()} would
+     * refuse it anyway: its gameon-date plus the request expiry (and skew).
+     * This is never more than a replay window (and skew) from now, whatever
+     * the client sent.
+     *
+     * @return time at which the signature can be forgotten, in epoch milliseconds:
+     *      a full replay window from now if the date is not known
+     */
+    long replayExpiresAt() {
+        long now = SignedClock.now();
+        if ( date == null ) {
+            return SignedRequestTimedCache.expiresAt(now, EXPIRES_REPLAY_MS);
+        }
+        long latest = SignedRequestTimedCache.expiresAt(now, EXPIRES_REPLAY_MS.plus(REPLAY_SKEW_MS));
+        try {
+            return Math.min(latest, Math.addExact(date.toEpochMilli(), EXPIRES_REQUEST_MILLIS + REPLAY_SKEW_MS.toMillis()));
+        } catch (ArithmeticException e) {
+            return latest;
+        }
+    }
+
+    /**
+     * Make sure we only look at young requests, and not at requests dated
+     * further in the future than clock skew allows
      * @return this
      */
     public SignedRequestHmac checkExpiry() {
-        Instant now = Instant.now();
         if (date == null) {
             throw new WebApplicationException("Invalid signature (date)", Status.FORBIDDEN);
-        } else if( Duration.between(date,now).compareTo(EXPIRES_REQUEST_MS) > 0) {
+        }
+        long age;
+        try {
+            age = Math.subtractExact(SignedClock.now(), date.toEpochMilli());
+        } catch (ArithmeticException e) {
+            age = date.isBefore(Instant.EPOCH) ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        if ( age > EXPIRES_REQUEST_MILLIS ) {
             throw new WebApplicationException("Signature expired", Status.FORBIDDEN);
         }
+        if ( age < -REPLAY_SKEW_MS.toMillis() ) {
+            throw new WebApplicationException("Invalid signature (date in the future)", Status.FORBIDDEN);
+        }
         return this;
     }
 
@@ -153,7 +186,7 @@ public class SignedRequestHmac {
             if ( !sigParameters.isEmpty() && hashOfValuesNotEqual(sigParameters, parameters) ) {
                 throw new WebApplicationException("Invalid signature (parameters)", Status.FORBIDDEN);
             }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException e) {
             throw new WebApplicationException("Invalid signature", Status.FORBIDDEN);
         }
         return this;
@@ -177,17 +210,35 @@ public class SignedRequestHmac {
                                     List<String> header_names,
                                     SignedRequestMap query_parameters,
                                     List<String> parameter_names) throws WebApplicationException{
+        return generateRequestHeaderHashes(headers, SignedNames.of(header_names),
+                query_parameters, SignedNames.of(parameter_names));
+    }
+
+    /**
+     * As {@link #generateRequestHeaderHashes(SignedRequestMap, List, SignedRequestMap, List)},
+     * with names that have been prepared ahead of time.
+     *
+     * @param headers Request headers: will be modified
+     * @param header_names Names of headers to include in hash, or null
+     * @param query_parameters Query parameters
+     * @param parameter_names Names of query parameters to include in hash, or null
+     * @return this
+     */
+    SignedRequestHmac generateRequestHeaderHashes(SignedRequestMap headers,
+                                    SignedNames header_names,
+                                    SignedRequestMap query_parameters,
+                                    SignedNames parameter_names) throws WebApplicationException{
         try {
-            if ( header_names != null && !header_names.isEmpty() ) {
+            if ( header_names != null ) {
                 sigHeaders = hashOfValues(header_names, headers);
                 headers.putSingle(GAMEON_HEADERS, sigHeaders);
             }
 
-            if ( parameter_names != null && !parameter_names.isEmpty() ) {
-                 sigParameters = hashOfValues(parameter_names, query_parameters);
+            if ( parameter_names != null ) {
+                sigParameters = hashOfValues(parameter_names, query_parameters);
                 headers.putSingle(GAMEON_PARAMETERS, sigParameters);
             }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException e) {
             // this is our fault.
             throw new WebApplicationException("Unable to generate hash", Status.INTERNAL_SERVER_ERROR);
         }
@@ -216,17 +267,41 @@ public class SignedRequestHmac {
         }
 
         try {
-            String h_bodyHash = buildHash(body);
-            if ( !sigBody.equals(h_bodyHash) ) {
+            SignedEncoder encoder = SignedEncoder.get();
+            MessageDigest md = encoder.sha256();
+            md.update(body);
+            if ( !encoder.matches(md, sigBody, 0) ) {
                 throw new WebApplicationException("Invalid signature (bodyHash)", Status.FORBIDDEN);
             }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException e) {
             throw new WebApplicationException("Unable to generate hash", Status.FORBIDDEN);
         }
 
         return this;
     }
 
+    /**
+     * Given the SHA-256 digest of the body bytes (computed as the body was read),
+     * verify the hashed header matches the expected value
+     * @param digest SHA-256 digest of the message body
+     * @param length Number of body bytes included in the digest
+     * @throws WebApplicationException if the body is missing or does not match
+     * @return this
+     */
+    public SignedRequestHmac verifyBodyDigest(byte[] digest, long length) {
+        if ( sigBody.isEmpty())
+            return this;
+
+        if ( digest == null || length == 0) {
+            throw new WebApplicationException("Invalid signature (body)", Status.FORBIDDEN);
+        }
+
+        if ( !SignedEncoder.get().matches(digest, sigBody, 0) ) {
+            throw new WebApplicationException("Invalid signature (bodyHash)", Status.FORBIDDEN);
+        }
+        return this;
+    }
+
     /**
      * Generate the ameon-sig-body header with a hash of the message body
      *
@@ -239,12 +314,26 @@ public class SignedRequestHmac {
         try {
             sigBody = buildHash(body);
             headers.putSingle(GAMEON_SIG_BODY, sigBody);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        } catch (NoSuchAlgorithmException e) {
             throw new WebApplicationException("Unable to generate hash", Status.FORBIDDEN);
         }
         return this;
     }
 
+    /**
+     * Generate the gameon-sig-body header from the SHA-256 digest of the message body
+     * (computed as the body was written)
+     *
+     * @param headers Message headers: will be modified to add hash for message body
+     * @param digest SHA-256 digest of the message body
+     * @return this
+     */
+    public SignedRequestHmac generateBodyDigest(SignedRequestMap headers, byte[] digest) {
+        sigBody = Base64.getEncoder().encodeToString(digest);
+        headers.putSingle(GAMEON_SIG_BODY, sigBody);
+        return this;
+    }
+
     /**
      * Verify that the gameon-signature header matches the hashed value of
      * all of the signature elements(7):  method, baseUri, userId,
@@ -254,23 +343,11 @@ public class SignedRequestHmac {
      */
     public SignedRequestHmac verifyFullSignature() {
         try {
-            List<String> stuffToHash = new ArrayList<String>();
-
-            if ( !oldStyle ) {
-                stuffToHash.add(method);    // (1)
-                stuffToHash.add(baseUri);   // (2)
-            }
-            stuffToHash.add(userId);        // (3)
-            stuffToHash.add(dateString);    // (4)
-            stuffToHash.add(sigHeaders);    // (5)
-            stuffToHash.add(sigParameters); // (6)
-            stuffToHash.add(sigBody);       // (7)
-
-            String h_hmac = buildHmac(stuffToHash);
-            if ( !signature.equals(h_hmac) ) {
+            SignedEncoder encoder = SignedEncoder.get();
+            if ( !encoder.matches(requestHmac(encoder), signature) ) {
                 throw new WebApplicationException("Invalid signature (hmacCompare)", Status.FORBIDDEN);
             }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new WebApplicationException("Invalid signature", Status.FORBIDDEN);
         }
 
@@ -303,13 +380,13 @@ public class SignedRequestHmac {
     }
 
     /**
-     * Set the date string to now.
+     * Set the date string to now (to the second, in GMT).
      * @return this
      */
     public SignedRequestHmac setNow() {
-        ZonedDateTime now = ZonedDateTime.now();
-        this.date = now.toInstant();
-        this.dateString = DateTimeFormatter.RFC_1123_DATE_TIME.format(now);
+        SignedDate.Parsed now = SignedDate.now();
+        this.date = now.instant;
+        this.dateString = now.value;
         this.oldStyle = false;
         return this;
     }
@@ -322,32 +399,19 @@ public class SignedRequestHmac {
      */
     public SignedRequestHmac signRequest(SignedRequestMap headers) {
 
-        List<String> stuffToHash = new ArrayList<String>();
-
         if ( dateString == null ) // fallback
             setNow();
 
         try {
-            if ( !oldStyle ) {
-                stuffToHash.add(method);                  // (1)
-                stuffToHash.add(baseUri);                 // (2)
-            }
-
             if ( !userId.isEmpty() ) {
-                stuffToHash.add(userId);                  // (3)
                 headers.putSingle(GAMEON_ID, userId);
             }
-
-            stuffToHash.add(dateString);                  // (4)
             headers.putSingle(GAMEON_DATE, dateString);
 
-            stuffToHash.add(valueOrEmpty(sigHeaders));    // (5)
-            stuffToHash.add(valueOrEmpty(sigParameters)); // (6)
-            stuffToHash.add(valueOrEmpty(sigBody));       // (7)
-
-            signature = buildHmac(stuffToHash);
+            SignedEncoder encoder = SignedEncoder.get();
+            signature = encoder.finish(requestHmac(encoder));
             headers.putSingle(GAMEON_SIGNATURE, signature);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             // this is our fault.
             throw new WebApplicationException("Unable to generate signature", Status.INTERNAL_SERVER_ERROR);
         }
@@ -377,21 +441,21 @@ public class SignedRequestHmac {
             throw new NullPointerException("Must have a parsed signature to resign");
 
         try {
-            List<String> stuffToHash = new ArrayList<String>();
+            String previous = null;
 
             if ( oldStyle ) {
-                setOldStyleDate(Instant.now());
+                setOldStyleDate(Instant.ofEpochMilli(SignedClock.now()));
             } else {
                 setNow();
-                stuffToHash.add(signature);               // (2) - previous signature
+                previous = signature;                     // (2) - previous signature
             }
 
-            stuffToHash.add(0, dateString);               // (1) -- this should come first
-            headers.putSingle(GAMEON_DATE, dateString);
+            headers.putSingle(GAMEON_DATE, dateString);   // (1) -- this should come first
 
-            signature = buildHmac(stuffToHash);
+            SignedEncoder encoder = SignedEncoder.get();
+            signature = encoder.finish(wsHmac(encoder, dateString, previous));
             headers.putSingle(GAMEON_SIGNATURE, signature);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             // this is our fault.
             throw new WebApplicationException("Unable to generate signature", Status.INTERNAL_SERVER_ERROR);
         }
@@ -416,18 +480,16 @@ public class SignedRequestHmac {
         }
 
         try {
-            List<String> stuffToHash = new ArrayList<String>();
-
-            stuffToHash.add(headers.getAll(GAMEON_DATE, "")); // (1) -- read date from headers
-            stuffToHash.add(signature);// (2) - what we sent
-
-            String h_hmac = buildHmac(stuffToHash);
+            SignedEncoder encoder = SignedEncoder.get();
+            Mac mac = wsHmac(encoder,
+                    headers.getAll(GAMEON_DATE, ""),  // (1) -- read date from headers
+                    signature);                       // (2) - what we sent
             String room_signature = headers.getAll(GAMEON_SIGNATURE, null);
 
-            if ( !room_signature.equals(h_hmac) ) {
+            if ( !encoder.matches(mac, room_signature) ) {
                 throw new WebApplicationException("Invalid signature (hmacCompare)", Status.FORBIDDEN);
             }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new WebApplicationException("Invalid signature", Status.FORBIDDEN);
         }
 
@@ -448,31 +510,27 @@ public class SignedRequestHmac {
      * @param names Names of message headers/parameters to include in the hash
      * @param map MultivaluedMap containing HTTP headers/parameters
      * @return A;B;C;hashOfValues
-     * @throws UnsupportedEncodingException
      * @throws NoSuchAlgorithmException
      */
-    protected String hashOfValues(List<String> names, SignedRequestMap map) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    protected String hashOfValues(List<String> names, SignedRequestMap map) throws NoSuchAlgorithmException {
+        return hashOfValues(SignedNames.of(names), map);
+    }
 
-        // Make a list of values for named elements
-        StringBuilder result = new StringBuilder();
-        List<String> hashValues = new ArrayList<String>();
+    static String hashOfValues(SignedNames names, SignedRequestMap map) throws NoSuchAlgorithmException {
 
-        for ( String key : names ) {
-            if ( key.startsWith(GAMEON_HEADER_PREFIX) ) {
-                continue;
-            }
+        // Create a hash of the values for named elements
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
+
+        for ( String key : names.hashed ) {
             String value = map.getAll(key, "");
             if ( value != null ) {
-                result.append(key).append(';');
-                hashValues.add(value);
+                encoder.update(md, value);
             }
         }
 
-        // Create a hash of the gathered values
-        String hash = buildHash(hashValues);
-
         // Set the header to the list of names and the hash of their values
-        return String.join(";", names) + ";" + hash;
+        return names.prefix + encoder.finish(md);
     }
 
     /**
@@ -481,86 +539,117 @@ public class SignedRequestHmac {
      * @param header
      * @param map
      * @return true if new hash generated from header values, and the old hash in the header DO NOT match.
-     * @throws UnsupportedEncodingException
      * @throws NoSuchAlgorithmException
      */
-    protected boolean hashOfValuesNotEqual(String header, SignedRequestMap map) throws NoSuchAlgorithmException, UnsupportedEncodingException  {
+    protected boolean hashOfValuesNotEqual(String header, SignedRequestMap map) throws NoSuchAlgorithmException {
         int rpos = header.lastIndexOf(';');
-        String oldHash = header.substring(rpos+1);
-        List<String> names = Arrays.asList(header.substring(0, rpos).split(";"));
+        if ( rpos < 0 ) {
+            return true; // no names, no hash
+        }
 
-        List<String> values = new ArrayList<String>();
-        for(String key : names ) {
-            values.add(map.getAll(key, ""));
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
+        for(String key : SignedNames.parse(header, rpos).names ) {
+            encoder.update(md, map.getAll(key, ""));
         }
 
-        String newHash = buildHash(values);
-        return !oldHash.equals(newHash);
+        return !encoder.matches(md, header, rpos+1);
     }
 
     /**
-     * Construct a new hmac signature using the values passed in stuffToHash
+     * Hash the request elements(7): method, baseUri, userId, dateString, sigHeaders,
+     * sigParameters, sigBody. Old-style signatures do not include the method and baseUri.
+     *
+     * @param encoder This thread's encoder
+     * @return keyed Mac, ready to finish or compare
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    private Mac requestHmac(SignedEncoder encoder) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = SignedMacCache.get(secret);
+
+        if ( !oldStyle ) {
+            encoder.update(mac, method);                   // (1)
+            encoder.update(mac, baseUri);                  // (2)
+        }
+        encoder.update(mac, userId);                       // (3)
+        encoder.update(mac, dateString);                   // (4)
+        encoder.update(mac, valueOrEmpty(sigHeaders));     // (5)
+        encoder.update(mac, valueOrEmpty(sigParameters));  // (6)
+        encoder.update(mac, valueOrEmpty(sigBody));        // (7)
+
+        return mac;
+    }
+
+    /**
+     * Hash the WebSocket handshake elements: date, then the previous signature (if any).
+     *
+     * @param encoder This thread's encoder
+     * @return keyed Mac, ready to finish or compare
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    private Mac wsHmac(SignedEncoder encoder, String date, String previous) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = SignedMacCache.get(secret);
+
+        encoder.update(mac, date);
+        if ( previous != null ) {
+            encoder.update(mac, previous);
+        }
+        return mac;
+    }
+
+    /**
+     * Construct a new hmac signature using the values passed in stuffToHash.
+     * The keyed Mac is reused from {@link SignedMacCache}.
      *
      * @param stuffToHash
-     * @param key
      * @return
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeyException
-     * @throws UnsupportedEncodingException
      */
     protected String buildHmac(List<String> stuffToHash)
-            throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
-        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-        mac.init(new SecretKeySpec(secret.getBytes(UTF8), HMAC_ALGORITHM));
-
-        if ( oldStyle ) {
-            StringBuilder hashData = new StringBuilder();
-            for(String s: stuffToHash){
-                hashData.append(s);
-            }
-            mac.update(hashData.toString().getBytes(UTF8));
-        } else {
-            for(String s: stuffToHash){
-                mac.update(s.getBytes(UTF8));
-            }
-        }
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        SignedEncoder encoder = SignedEncoder.get();
+        Mac mac = SignedMacCache.get(secret);
 
-        return Base64.getEncoder().encodeToString( mac.doFinal() );
+        // Old style concatenated the values before hashing: the bytes are the same.
+        for(String s: stuffToHash){
+            encoder.update(mac, s);
+        }
+        return encoder.finish(mac);
     }
 
-    protected String buildHash(String data) throws NoSuchAlgorithmException, UnsupportedEncodingException{
-        return buildHash(data.getBytes(UTF8));
+    protected String buildHash(String data) throws NoSuchAlgorithmException {
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
+        encoder.update(md, data);
+        return encoder.finish(md);
     }
 
-    protected String buildHash(byte[] data) throws NoSuchAlgorithmException, UnsupportedEncodingException{
-        MessageDigest md = MessageDigest.getInstance(SHA_256);
+    protected String buildHash(byte[] data) throws NoSuchAlgorithmException {
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
         md.update(data);
-        byte[] digest = md.digest();
-        return Base64.getEncoder().encodeToString( digest );
+        return encoder.finish(md);
     }
 
-    protected String buildHash(List<String> values) throws NoSuchAlgorithmException, UnsupportedEncodingException{
-        MessageDigest md = MessageDigest.getInstance(SHA_256);
+    protected String buildHash(List<String> values) throws NoSuchAlgorithmException {
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
         for( String value : values ) {
-            md.update(value.getBytes(UTF8));
+            encoder.update(md, value);
         }
-        return Base64.getEncoder().encodeToString( md.digest() );
+        return encoder.finish(md);
     }
 
     private Instant parseValue(String dateString) {
-        try {
-            ZonedDateTime then = ZonedDateTime.parse(dateString, DateTimeFormatter.RFC_1123_DATE_TIME);
-            oldStyle = false; // TEMPORARY
-            return then.toInstant();
-        } catch(DateTimeParseException e) {
-            try {
-                Instant then = Instant.parse(dateString);
-                oldStyle = true; // TEMPORARY: skip method and URI when parsing signature
-                return then;
-            } catch(DateTimeParseException ne) {
-                return null;
-            }
+        SignedDate.Parsed parsed = SignedDate.parse(dateString);
+        if ( parsed == null ) {
+            return null;
         }
+        oldStyle = parsed.oldStyle; // TEMPORARY: old-style skips method and URI when parsing signature
+        return parsed.instant;
     }
 
     @Override
@@ -50,6 +50,32 @@ public interface SignedRequestMap {
 
     public Set<String> keySet();
 
+    /**
+     * Concatenate values in order. Almost every key has exactly one value,
+     * which is returned as-is rather than copied.
+     *
+     * @param values Values for a key, or null if the key is not present
+     * @param defaultValue Value to return if the key is not present
+     * @return concatenated values, or defaultValue
+     */
+    private static String join(List<?> values, String defaultValue) {
+        if ( values == null ) {
+            return defaultValue;
+        }
+        switch (values.size()) {
+            case 0:
+                return "";
+            case 1:
+                Object value = values.get(0);
+                return value instanceof String ? (String) value : String.valueOf(value);
+            default:
+                StringBuilder builder = new StringBuilder();
+                for ( Object v : values ) {
+                    builder.append(v);
+                }
+                return builder.toString();
+        }
+    }
 
     /**
      * Wrap around a {@code MultivaluedMap<String, Object>}
@@ -75,15 +101,7 @@ public interface SignedRequestMap {
 
         @Override
         public String getAll(String key, String defaultValue) {
-            List<Object> values = mvso.get(key);
-            if ( values != null ) {
-                StringBuilder builder = new StringBuilder();
-                for ( Object value : values ) {
-                    builder.append(value);
-                }
-                return builder.toString();
-            }
-            return defaultValue;
+            return join(mvso.get(key), defaultValue);
         }
 
         @Override
@@ -120,15 +138,7 @@ public interface SignedRequestMap {
 
         @Override
         public String getAll(String key, String defaultValue) {
-            List<String> values = mvss.get(key);
-            if ( values != null ) {
-                StringBuilder builder = new StringBuilder();
-                for ( String value : values ) {
-                    builder.append(value);
-                }
-                return builder.toString();
-            }
-            return defaultValue;
+            return join(mvss.get(key), defaultValue);
         }
 
         @Override
@@ -143,14 +153,23 @@ public interface SignedRequestMap {
     }
 
     /**
-     * Wrap around a query parameter string
+     * Wrap around a query parameter string.
+     *
+     * The raw query is scanned once, on first use, recording where each name=value
+     * pair starts and ends. Lookups compare names in place, and only the values of
+     * requested keys are copied out. Pairs are split as by {@code split("&")}: a pair
+     * without a '=' (or with a leading '=') is a name without a value.
      */
     static class QueryParameterMap implements SignedRequestMap {
         final String queryString;
         MVSS_StringMap mvss = null;
 
+        /** start, position of '=' (or -1), and end of each pair */
+        int[] spans = null;
+        int length = 0;
+
         public QueryParameterMap(String queryString) {
-            this.queryString = queryString;
+            this.queryString = queryString == null ? "" : queryString;
         }
 
         @Override
@@ -160,47 +179,127 @@ public interface SignedRequestMap {
 
         @Override
         public String getFirst(String key) {
-            if ( mvss == null )
-                unpack();
-            return mvss.getFirst(key);
+            if ( spans == null )
+                index();
+            for (int i = 0; i < length; i += 3) {
+                if ( spans[i + 1] >= 0 && keyMatches(i, key) ) {
+                    return value(i);
+                }
+            }
+            return null;
         }
 
         @Override
         public String getAll(String key, String defaultValue) {
-            if ( mvss == null )
-                unpack();
-            return mvss.getAll(key, defaultValue);
+            if ( spans == null )
+                index();
+
+            int first = -1;
+            StringBuilder builder = null;
+            for (int i = 0; i < length; i += 3) {
+                if ( !keyMatches(i, key) ) {
+                    continue;
+                }
+                if ( first < 0 ) {
+                    first = i;
+                } else {
+                    if ( builder == null ) {
+                        builder = append(new StringBuilder(), first);
+                    }
+                    append(builder, i);
+                }
+            }
+
+            if ( first < 0 ) {
+                return defaultValue;
+            }
+            if ( builder == null ) {
+                String value = value(first);
+                return value == null ? "" : value;
+            }
+            return builder.toString();
         }
 
-        private void unpack() {
-            MultivaluedMap<String, String> internal = new MultivaluedHashMap<>();
+        private void index() {
+            int[] result = new int[24];
+            int count = 0;
+            int len = queryString.length();
+            int start = 0;
+            int eq = -1;
+
+            for (int i = 0; i <= len; i++) {
+                char c = i < len ? queryString.charAt(i) : '&';
+                if ( c == '=' && eq < 0 ) {
+                    eq = i;
+                } else if ( c == '&' ) {
+                    if ( count == result.length ) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = start;
+                    result[count++] = eq > start ? eq : -1;
+                    result[count++] = i;
+                    start = i + 1;
+                    eq = -1;
+                }
+            }
 
-            // we do not decode the parameters
-            String[] pairs = queryString.split("&");
-            for (String pair : pairs) {
-                String key;
-                String value;
-                int pos = pair.indexOf("=");
-                if ( pos > 0 ) {
-                    key = pair.substring(0,pos);
-                    value = pos < pair.length() ? pair.substring(pos + 1 ) : null;
-                } else {
-                    key = pair;
-                    value = null;
+            // as split: trailing empty pairs are dropped, unless there is only one
+            if ( count > 3 ) {
+                while ( count > 0 && result[count - 3] == result[count - 1] ) {
+                    count -= 3;
                 }
-                internal.add(key, value);
             }
 
+            length = count;
+            spans = result;
+        }
+
+        private boolean keyMatches(int i, String key) {
+            int start = spans[i];
+            int end = spans[i + 1] < 0 ? spans[i + 2] : spans[i + 1];
+            return end - start == key.length() && queryString.regionMatches(start, key, 0, key.length());
+        }
+
+        private String key(int i) {
+            return queryString.substring(spans[i], spans[i + 1] < 0 ? spans[i + 2] : spans[i + 1]);
+        }
+
+        private String value(int i) {
+            return spans[i + 1] < 0 ? null : queryString.substring(spans[i + 1] + 1, spans[i + 2]);
+        }
+
+        private StringBuilder append(StringBuilder builder, int i) {
+            if ( spans[i + 1] < 0 ) {
+                return builder; // no value
+            }
+            return builder.append(queryString, spans[i + 1] + 1, spans[i + 2]);
+        }
+
+        /**
+         * Copy all pairs into a map, for keySet and toString
+         */
+        private void unpack() {
+            if ( spans == null )
+                index();
+
+            MultivaluedMap<String, String> internal = new MultivaluedHashMap<>();
+            for (int i = 0; i < length; i += 3) {
+                internal.add(key(i), value(i));
+            }
             mvss = new MVSS_StringMap(internal);
         }
 
         @Override
         public String toString() {
+            if ( mvss == null )
+                unpack();
             return mvss.toString();
         }
 
         @Override
         public Set<String> keySet() {
+            if ( mvss == null )
+                unpack();
             return mvss.keySet();
         }
     }
@@ -233,15 +332,7 @@ public interface SignedRequestMap {
 
         @Override
         public String getAll(String key, String defaultValue) {
-            List<String> values = mls.get(key);
-            if ( values != null ) {
-                StringBuilder builder = new StringBuilder();
-                for ( String value : values ) {
-                    builder.append(value);
-                }
-                return builder.toString();
-            }
-            return defaultValue;
+            return join(mls.get(key), defaultValue);
         }
 
         @Override
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Signs outbound requests for a fixed user id, secret, and set of required
+ * headers and query parameters.
+ *
+ * Instances are immutable and can be shared between threads: create one per
+ * configuration and reuse it for every request. The secret is checked once,
+ * here, and the name lists are copied and joined once, rather than per request.
+ * The keyed {@link Mac} is shared through {@link SignedMacCache}.
+ *
+ * Usage is something like this:
+ * <pre>
+ *   SignedRequestSigner signer = new SignedRequestSigner(userid, secret, header_names, parameter_names);
+ *
+ *   // for each request
+ *   signer.sign("GET", "/map/v1/sites", headers, query, null);
+ * </pre>
+ *
+ * @see SignedClientRequestFilter
+ */
+public final class SignedRequestSigner {
+
+    private final String userId;
+    private final String secret;
+    private final SignedNames headerNames;
+    private final SignedNames parameterNames;
+
+    public SignedRequestSigner(String userId, String secret) {
+        this(userId, secret, null, null);
+    }
+
+    /**
+     * @param userId User id, may be null or empty for unauthenticated requests
+     * @param secret Shared secret
+     * @param header_names Names of headers to include in the signature, or null
+     * @param parameter_names Names of query parameters to include in the signature, or null
+     * @throws WebApplicationException if the secret is empty
+     */
+    public SignedRequestSigner(String userId, String secret,
+            List<String> header_names,
+            List<String> parameter_names) {
+        if (secret == null)
+            throw new NullPointerException("NULL secret");
+        if (secret.isEmpty())
+            throw new WebApplicationException("Invalid or unretrievable shared secret", Status.FORBIDDEN);
+
+        this.userId = userId;
+        this.secret = secret;
+        this.headerNames = SignedNames.of(header_names);
+        this.parameterNames = SignedNames.of(parameter_names);
+    }
+
+    /**
+     * Sign a request: sets gameon-id, gameon-date, gameon-signature, and if required,
+     * gameon-sig-headers, gameon-sig-params and gameon-sig-body headers.
+     *
+     * @param method HTTP method
+     * @param rawPath Raw (not decoded) request path
+     * @param headers Request headers: will be modified
+     * @param query Query parameters, may be null if no parameters are required
+     * @param bodyDigest SHA-256 digest of the request body, or null if there is no body
+     * @return gameon-signature value
+     * @throws WebApplicationException if an exception occurs generating the signature
+     */
+    public String sign(String method, String rawPath,
+            SignedRequestMap headers, SignedRequestMap query, byte[] bodyDigest) {
+        SignedRequestHmac hmac = prepare(method, rawPath, headers, query);
+        if ( bodyDigest != null ) {
+            hmac.generateBodyDigest(headers, bodyDigest);
+        }
+        return hmac.signRequest(headers).getSignature();
+    }
+
+    /**
+     * Start signing a request whose body is not yet known. The date, and
+     * gameon-sig-headers and gameon-sig-params headers are set: the returned
+     * hmac is finished with {@link SignedRequestHmac#generateBodyDigest(SignedRequestMap, byte[])}
+     * and {@link SignedRequestHmac#signRequest(SignedRequestMap)}.
+     *
+     * @param method HTTP method
+     * @param rawPath Raw (not decoded) request path
+     * @param headers Request headers: will be modified
+     * @param query Query parameters, may be null if no parameters are required
+     * @return the prepared hmac, for use by this request only
+     * @throws WebApplicationException if an exception occurs generating hashes
+     */
+    public SignedRequestHmac prepare(String method, String rawPath,
+            SignedRequestMap headers, SignedRequestMap query) {
+        return new SignedRequestHmac(userId, secret, method, rawPath)
+                .setNow()
+                .generateRequestHeaderHashes(headers, headerNames, query, parameterNames);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    @Override
+    public String toString() {
+        return "SignedRequestSigner [userId=" + userId
+                + ", headers=" + (headerNames == null ? "" : headerNames.prefix)
+                + ", parameters=" + (parameterNames == null ? "" : parameterNames.prefix) + "]";
+    }
+}
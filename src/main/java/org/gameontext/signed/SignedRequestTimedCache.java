@@ -15,51 +15,515 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
 
 import io.quarkus.arc.Unremovable;
 
+/**
+ * Recently seen request signatures, used to reject replayed requests.
+ *
+ * Signatures are held in a {@link SignedReplayStore}. By default this is a
+ * {@link SignedReplayTable}: 128 bits of the raw hmac and an expiry time, in
+ * striped primitive arrays. Expired entries are reused in place, and dropped
+ * when a stripe is rehashed, so memory is bounded by the request rate times the
+ * replay window. Processes on the same host can share a {@link SignedMappedReplayStore}
+ * instead, so a request replayed to another process is also refused, and
+ * nodes of a cluster can replicate their signatures to each other with a
+ * {@link SignedClusterReplayStore}.
+ *
+ * An optional {@link SignedReplayFilter} can be placed in front of the store.
+ * Signatures it knows to be new are added to the store without a search for
+ * duplicates.
+ *
+ * Expired entries are removed by a background task, within a time budget, so
+ * the request path only does the lookup and insert.
+ *
+ * Live signatures can be saved to a {@link SignedReplaySnapshot}, and are loaded
+ * again when the store is created, so a restarted process can take traffic at
+ * once without accepting requests replayed from before the restart. New
+ * signatures are appended to the file as they are added, by a
+ * {@link SignedReplayJournal}, so this also holds after a crash; the file is
+ * compacted periodically and at shutdown.
+ *
+ * The cache holds a limited number of signatures, and may limit the number held
+ * for each gameon-id. Unexpired signatures are never evicted to make room, as they
+ * could then be replayed: new requests are refused instead, with 503 (Service
+ * Unavailable) when the cache is full, or 429 (Too Many Requests) when a user's
+ * quota is used up.
+ */
 @ApplicationScoped
 @Unremovable
 public class SignedRequestTimedCache {
 
-    /** number of requests before a cleanup is triggered */
-    final static int TRIGGER_CLEANUP_DEPTH = 1000;
+    static final double DEFAULT_FILTER_FPP = 0.01;
+    static final long DEFAULT_FILTER_MAX_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_SWEEP_INTERVAL_MS = 1000;
+    static final long DEFAULT_SWEEP_BUDGET_MS = 5;
+    static final long DEFAULT_MAX_ENTRIES = 1000000;
+    static final String DEFAULT_STORE = "memory";
+    static final long DEFAULT_CLUSTER_FLUSH_MS = 2;
+    static final long DEFAULT_SNAPSHOT_INTERVAL_MS = 30000;
+    static final long DEFAULT_SNAPSHOT_FLUSH_MS = 2;
+
+    /** HTTP status for a user that is over quota */
+    static final int TOO_MANY_REQUESTS = 429;
+
+    /** creates the store when it is first used: not in the constructor, which also runs for CDI proxies */
+    private final Supplier<SignedReplayStore> stores;
+    private volatile SignedReplayStore store;
+
+    /** null if disabled */
+    private final Path snapshot;
+    private long snapshotFlushMs = DEFAULT_SNAPSHOT_FLUSH_MS;
+
+    /** appends new signatures to the snapshot: null if disabled, or the file can not be written */
+    private volatile SignedReplayJournal journal;
+
+    /** null if disabled */
+    protected final SignedReplayFilter filter;
+
+    /** null if disabled */
+    protected final SignedReplayQuotas quotas;
+
+    private final AtomicLong capacityRejections = new AtomicLong(0);
+    private final AtomicLong quotaRejections = new AtomicLong(0);
+
+    private ScheduledExecutorService sweeper;
+    private long sweepBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SWEEP_BUDGET_MS);
+
+    private volatile long lastSweepNanos = 0;
+    private volatile int lastSweepEvicted = 0;
+    private final AtomicLong evicted = new AtomicLong(0);
+
+    public SignedRequestTimedCache() {
+        this(ConfigProvider.getConfig());
+    }
+
+    private SignedRequestTimedCache(Config config) {
+        this(() -> createStore(config), createFilter(config),
+            config.getOptionalValue("gameon.signed.replay.user-quota", Integer.class).orElse(0),
+            config.getOptionalValue("gameon.signed.replay.snapshot.path", String.class).map(Paths::get).orElse(null));
+    }
+
+    /**
+     * @param filter Replay filter, or null
+     * @param maxEntries Maximum number of signatures held, or 0 for no limit
+     * @param userQuota Maximum number of signatures per gameon-id per replay window, or 0 for no limit
+     */
+    SignedRequestTimedCache(SignedReplayFilter filter, long maxEntries, int userQuota) {
+        this(() -> new SignedReplayTable(maxEntries), filter, userQuota, null);
+    }
+
+    /**
+     * @param store Replay store
+     * @param filter Replay filter, or null
+     * @param userQuota Maximum number of signatures per gameon-id per replay window, or 0 for no limit
+     */
+    SignedRequestTimedCache(SignedReplayStore store, SignedReplayFilter filter, int userQuota) {
+        this(() -> store, filter, userQuota, null);
+    }
+
+    /**
+     * @param stores Creates the replay store
+     * @param filter Replay filter, or null
+     * @param userQuota Maximum number of signatures per gameon-id per replay window, or 0 for no limit
+     * @param snapshot File the store is saved to and loaded from, or null
+     */
+    SignedRequestTimedCache(Supplier<SignedReplayStore> stores, SignedReplayFilter filter, int userQuota, Path snapshot) {
+        this.stores = stores;
+        this.snapshot = snapshot;
+        this.filter = filter;
+        this.quotas = userQuota > 0 ? new SignedReplayQuotas(userQuota, SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis()) : null;
+        if ( filter != null ) {
+            SignedLogger.writeLog(Level.INFO, this,
+                    "Replay filter enabled: {0} hashes, about {1} signatures per replay window",
+                    filter.hashes, filter.capacity());
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        Config config = ConfigProvider.getConfig();
+        long interval = config.getOptionalValue("gameon.signed.replay.sweep.interval-ms", Long.class)
+                .orElse(DEFAULT_SWEEP_INTERVAL_MS);
+        sweepBudgetNanos = TimeUnit.MILLISECONDS.toNanos(config.getOptionalValue("gameon.signed.replay.sweep.budget-ms", Long.class)
+                .orElse(DEFAULT_SWEEP_BUDGET_MS));
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gameon-signed-replay-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
 
-    /** this map contains all the received messages, it is thread safe */
-    protected ConcurrentHashMap<String,TimestampedKey> requests = new ConcurrentHashMap<>();
-    protected AtomicInteger triggerCount = new AtomicInteger(0);
+        if ( snapshot != null ) {
+            snapshotFlushMs = config.getOptionalValue("gameon.signed.replay.snapshot.flush-ms", Long.class)
+                    .orElse(DEFAULT_SNAPSHOT_FLUSH_MS);
+            long snapshotInterval = config.getOptionalValue("gameon.signed.replay.snapshot.interval-ms", Long.class)
+                    .orElse(DEFAULT_SNAPSHOT_INTERVAL_MS);
+            sweeper.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+        store(); // load the snapshot now, rather than on the first request
+    }
+
+    @PreDestroy
+    void stop() {
+        if ( sweeper != null ) {
+            sweeper.shutdownNow();
+            try {
+                sweeper.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sweeper = null;
+        }
+        SignedReplayStore store = this.store;
+        if ( store != null ) {
+            snapshot();
+            SignedReplayJournal journal = this.journal;
+            if ( journal != null ) {
+                journal.close();
+            }
+            store.close();
+        }
+    }
 
     public boolean isDuplicate(String hmac, Duration expiresIn) {
-        int count = triggerCount.get();
-        // if the count is over or above the cutoff point, try to clean up expired sessions
-        // avoid using size() on concurrent maps.
-        if ( count >= TRIGGER_CLEANUP_DEPTH && triggerCount.compareAndSet(count, 0) ) {
-            SignedLogger.writeLog(Level.INFO,this,"Clearing expired hmacs");
-            for ( Entry<String, TimestampedKey> request : requests.entrySet() ) {
-                if ( request.getValue().hasExpired() ) {
-                    requests.remove(request.getKey());
-                } else {
-                    // ConcurrentSkipListMap keeps them in sorted order by time
-                    // stop as soon as we find a not expired one.
-                    break;
+        return isDuplicate(hmac, expiresIn, "");
+    }
+
+    /**
+     * @param hmac Request signature
+     * @param expiresIn How long to remember the signature
+     * @param userId gameon-id of the request: empty for unauthenticated requests,
+     *      which are not subject to a quota
+     * @return true if the signature has been seen before
+     * @throws WebApplicationException with 503 if the cache is full, or 429 if the user is over quota
+     */
+    public boolean isDuplicate(String hmac, Duration expiresIn, String userId) throws WebApplicationException {
+        return isDuplicate(hmac, expiresAt(SignedClock.now(), expiresIn), userId);
+    }
+
+    /**
+     * @param hmac Request signature
+     * @param expiresAt Time at which the signature can be forgotten, in epoch milliseconds.
+     *      A signature that has already expired is not remembered.
+     * @param userId gameon-id of the request: empty for unauthenticated requests,
+     *      which are not subject to a quota
+     * @return true if the signature has been seen before
+     * @throws WebApplicationException with 503 if the cache is full, or 429 if the user is over quota
+     */
+    public boolean isDuplicate(String hmac, long expiresAt, String userId) throws WebApplicationException {
+        long now = SignedClock.now();
+        if ( expiresAt < now ) {
+            return false; // too old to be accepted, see SignedRequestHmac.checkExpiry
+        }
+
+        byte[] key = SignedReplayTable.key(hmac);
+        long k0 = SignedReplayTable.getLong(key, 0);
+        long k1 = SignedReplayTable.getLong(key, 8);
+
+        boolean quota = quotas != null && userId != null && !userId.isEmpty();
+        if ( quota && !quotas.acquire(userId, now) ) {
+            quotaRejections.incrementAndGet();
+            throw new WebApplicationException("Too many requests", TOO_MANY_REQUESTS);
+        }
+
+        boolean absent = filter != null && filter.add(k0, k1, expiresAt, now);
+        switch (store().add(k0, k1, expiresAt, now, absent)) {
+            case ADDED:
+                SignedReplayJournal journal = this.journal;
+                if ( journal != null ) {
+                    journal.append(k0, k1, expiresAt);
+                }
+                return false;
+            case DUPLICATE:
+                if ( quota ) {
+                    quotas.release(userId);
                 }
+                return true;
+            default:
+                if ( quota ) {
+                    quotas.release(userId);
+                }
+                capacityRejections.incrementAndGet();
+                throw new WebApplicationException("Replay cache is full", Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * @return number of signatures that have not yet expired
+     */
+    public int size() {
+        return store().size(SignedClock.now());
+    }
+
+    /**
+     * Remove expired signatures, within the sweep time budget.
+     * Called periodically by the background sweeper.
+     *
+     * @return number of signatures removed
+     */
+    int sweep() {
+        try {
+            long start = System.nanoTime();
+            long now = SignedClock.now();
+            int removed = store().sweep(now, sweepBudgetNanos);
+            if ( quotas != null ) {
+                quotas.purge(now);
             }
+            lastSweepNanos = System.nanoTime() - start;
+            lastSweepEvicted = removed;
+            evicted.addAndGet(removed);
+
+            SignedLogger.writeLog(Level.FINEST, this, "Cleared {0} expired hmacs in {1}ns", removed, lastSweepNanos);
+            return removed;
+        } catch (RuntimeException e) {
+            // keep the scheduled task alive
+            SignedLogger.writeLog(Level.WARNING, this, "Unable to clear expired hmacs", e);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the replay store, created (and loaded from the snapshot, which is then
+     *      appended to) on first use
+     */
+    SignedReplayStore store() {
+        SignedReplayStore s = store;
+        if ( s == null ) {
+            synchronized (this) {
+                s = store;
+                if ( s == null ) {
+                    s = stores.get();
+                    restore(s);
+                    journal = openJournal(s);
+                    store = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Save live signatures to the snapshot file, if there is one, dropping
+     * the expired signatures appended to it. Called periodically, and when
+     * the cache is stopped.
+     *
+     * @return number of signatures saved
+     */
+    int snapshot() {
+        SignedReplayStore store = this.store;
+        if ( snapshot == null || store == null ) {
+            return 0;
+        }
+        try {
+            long start = System.nanoTime();
+            SignedReplayJournal journal = this.journal;
+            int count = journal != null
+                    ? journal.compact(store, SignedClock.now())
+                    : SignedReplaySnapshot.write(snapshot, store, SignedClock.now());
+            SignedLogger.writeLog(Level.FINE, this, "Saved {0} hmacs to {1} in {2}ns", count, snapshot, System.nanoTime() - start);
+            return count;
+        } catch (IOException | RuntimeException e) {
+            SignedLogger.writeLog(Level.WARNING, this, "Unable to save hmacs to " + snapshot, e);
+            return 0;
+        }
+    }
+
+    private SignedReplayJournal openJournal(SignedReplayStore store) {
+        if ( snapshot == null ) {
+            return null;
         }
+        try {
+            return new SignedReplayJournal(snapshot, store, SignedClock.now(), snapshotFlushMs);
+        } catch (IOException | RuntimeException e) {
+            // saved periodically and at shutdown instead
+            SignedLogger.writeLog(Level.WARNING, this, "Unable to append hmacs to " + snapshot, e);
+            return null;
+        }
+    }
 
-        TimestampedKey t = new TimestampedKey(hmac, expiresIn);
-        if (requests.putIfAbsent(hmac, t) == null) {
-            triggerCount.incrementAndGet();
-            return false;
-        } else {
-            return true; // duplicate
+    private void restore(SignedReplayStore store) {
+        if ( snapshot == null ) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            long now = SignedClock.now();
+            // no signature is kept longer than a replay window (and skew), whatever the file says
+            long latest = expiresAt(now, SignedRequestHmac.EXPIRES_REPLAY_MS.plus(SignedRequestHmac.REPLAY_SKEW_MS));
+            int count = SignedReplaySnapshot.read(snapshot, (k0, k1, fileExpiresAt) -> {
+                long expiresAt = Math.min(fileExpiresAt, latest);
+                if ( filter != null ) {
+                    filter.add(k0, k1, expiresAt, now); // so they are not reported as new
+                }
+                store.add(k0, k1, expiresAt, now, false);
+            }, now);
+            SignedLogger.writeLog(Level.INFO, this, "Loaded {0} hmacs from {1} in {2}ms", count, snapshot,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            SignedLogger.writeLog(Level.WARNING, this, "Unable to load hmacs from " + snapshot, e);
         }
     }
 
+    /**
+     * @return duration of the most recent sweep, in nanoseconds
+     */
+    public long getLastSweepNanos() {
+        return lastSweepNanos;
+    }
+
+    /**
+     * @return number of signatures removed by the most recent sweep
+     */
+    public int getLastSweepEvicted() {
+        return lastSweepEvicted;
+    }
+
+    /**
+     * @return number of signatures removed by all sweeps
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return number of signatures held, including expired signatures that have not been removed yet
+     */
+    public long getDepth() {
+        return store().depth();
+    }
+
+    /**
+     * @return number of requests refused because the cache was full
+     */
+    public long getCapacityRejections() {
+        return capacityRejections.get();
+    }
+
+    /**
+     * @return number of requests refused because a user was over quota
+     */
+    public long getQuotaRejections() {
+        return quotaRejections.get();
+    }
+
+    /**
+     * @return number of signatures the cluster store did not send to a peer
+     *      (replication is best-effort), or 0 for other stores
+     */
+    public long getReplicationDropped() {
+        SignedReplayStore store = this.store;
+        return store instanceof SignedClusterReplayStore ? ((SignedClusterReplayStore) store).dropped.get() : 0;
+    }
+
+    /**
+     * @return number of replication datagrams the cluster store ignored
+     *      (malformed, or not authenticated), or 0 for other stores
+     */
+    public long getReplicationRejected() {
+        SignedReplayStore store = this.store;
+        return store instanceof SignedClusterReplayStore ? ((SignedClusterReplayStore) store).rejected.get() : 0;
+    }
+
+    static long expiresAt(long now, Duration expiresIn) {
+        try {
+            return Math.addExact(now, expiresIn.toMillis());
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return the store named by gameon.signed.replay.store: memory, mapped, cluster, or a class name
+     */
+    static SignedReplayStore createStore(Config config) {
+        long maxEntries = config.getOptionalValue("gameon.signed.replay.max-entries", Long.class).orElse(DEFAULT_MAX_ENTRIES);
+        String store = config.getOptionalValue("gameon.signed.replay.store", String.class).orElse(DEFAULT_STORE);
+
+        if ( "memory".equals(store) ) {
+            return new SignedReplayTable(maxEntries);
+        }
+        if ( "mapped".equals(store) ) {
+            // no default: anyone who can create the file first controls the replay set, so it must be in a private directory
+            String path = config.getOptionalValue("gameon.signed.replay.mapped.path", String.class)
+                    .orElseThrow(() -> new IllegalStateException("gameon.signed.replay.mapped.path is required for the mapped replay store"));
+            // no more than half full when every slot allowed is in use
+            long slots = maxEntries <= 0 ? SignedMappedReplayStore.MAX_SLOTS : Math.min(SignedMappedReplayStore.MAX_SLOTS, 2 * maxEntries);
+            try {
+                return new SignedMappedReplayStore(Paths.get(path), (int) Math.max(SignedMappedReplayStore.PROBES, slots));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map replay store " + path, e);
+            }
+        }
+        if ( "cluster".equals(store) ) {
+            // without a secret, any host that can reach the port could mark signatures as seen, or fill the table
+            String secret = config.getOptionalValue("gameon.signed.replay.cluster.secret", String.class)
+                    .orElseThrow(() -> new IllegalStateException("gameon.signed.replay.cluster.secret is required for the cluster replay store"));
+            String bind = config.getOptionalValue("gameon.signed.replay.cluster.bind", String.class).orElse("0.0.0.0:7800");
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (String peer : config.getOptionalValue("gameon.signed.replay.cluster.peers", String[].class).orElse(new String[0])) {
+                peers.add(address(peer));
+            }
+            try {
+                return new SignedClusterReplayStore(new SignedReplayTable(maxEntries), address(bind), peers,
+                        config.getOptionalValue("gameon.signed.replay.cluster.flush-ms", Long.class).orElse(DEFAULT_CLUSTER_FLUSH_MS),
+                        secret);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to bind replay store to " + bind, e);
+            }
+        }
+        try {
+            return Class.forName(store, true, Thread.currentThread().getContextClassLoader())
+                    .asSubclass(SignedReplayStore.class)
+                    .getDeclaredConstructor(long.class)
+                    .newInstance(maxEntries);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Unable to create replay store " + store, e);
+        }
+    }
+
+    /**
+     * @param address host:port
+     */
+    static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        if ( colon < 0 ) {
+            throw new IllegalArgumentException("Expected host:port, not " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+    }
+
+    static SignedReplayFilter createFilter(Config config) {
+        if ( !config.getOptionalValue("gameon.signed.replay.filter.enabled", Boolean.class).orElse(false) ) {
+            return null;
+        }
+        // signatures are kept until their gameon-date expires: allow for clients whose clocks are ahead
+        return new SignedReplayFilter(SignedRequestHmac.EXPIRES_REPLAY_MS.plus(SignedRequestHmac.REPLAY_SKEW_MS).toMillis(),
+                config.getOptionalValue("gameon.signed.replay.filter.fpp", Double.class).orElse(DEFAULT_FILTER_FPP),
+                config.getOptionalValue("gameon.signed.replay.filter.max-bytes", Long.class).orElse(DEFAULT_FILTER_MAX_BYTES),
+                SignedClock.now());
+    }
 }
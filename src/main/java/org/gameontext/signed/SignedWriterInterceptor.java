@@ -15,18 +15,44 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.logging.Level;
 
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.ext.WriterInterceptor;
 import javax.ws.rs.ext.WriterInterceptorContext;
 
+import org.eclipse.microprofile.config.ConfigProvider;
+
 public class SignedWriterInterceptor implements WriterInterceptor {
 
+    /** default size above which captured bodies are moved out of memory */
+    static final long DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    final long spillThreshold;
+
     public SignedWriterInterceptor() {
+        this(configuredSpillThreshold());
+    }
+
+    /**
+     * @param spillThreshold Size in bytes above which a captured body is written
+     *      to a temporary file rather than held in memory
+     */
+    public SignedWriterInterceptor(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    private static long configuredSpillThreshold() {
+        try {
+            return ConfigProvider.getConfig()
+                    .getOptionalValue("gameon.signed.body.spill-threshold", Long.class)
+                    .orElse(DEFAULT_SPILL_THRESHOLD);
+        } catch (RuntimeException e) {
+            return DEFAULT_SPILL_THRESHOLD; // no configuration available, e.g. in a client
+        }
     }
 
     /**
@@ -46,26 +72,49 @@ public class SignedWriterInterceptor implements WriterInterceptor {
             SignedRequestMap headers = new SignedRequestMap.MVSO_StringMap(context.getHeaders());
 
             OutputStream old = context.getOutputStream();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            context.setOutputStream(baos);
-
-            // Fully write response body
-            context.proceed();
-
-            // Capture response body
-            final byte[] body = baos.toByteArray();
+            SignedBodyCapture body = new SignedBodyCapture(sizeHint(context), spillThreshold);
+            context.setOutputStream(body);
 
             try {
-                // Finalize signature
-                hmac.generateBodyHash(headers, body)
-                    .signRequest(headers);
+                // Fully write response body: it is hashed as it is captured
+                context.proceed();
+
+                try {
+                    // Finalize signature
+                    hmac.generateBodyDigest(headers, body.digest())
+                        .signRequest(headers);
 
-                SignedLogger.writeLog(Level.FINEST, this, "WRITER INTERCEPTOR: {0}", headers);
+                    SignedLogger.writeLog(Level.FINEST, this, "WRITER INTERCEPTOR: {0}", headers);
+                } finally {
+                    // Write the response
+                    body.writeTo(old);
+                    context.setOutputStream(old);
+                }
             } finally {
-                // Write the response
-                old.write(body);
-                context.setOutputStream(old);
+                body.release();
             }
         }
     }
+
+    /**
+     * @return the expected body length from Content-Length or the entity itself, or -1
+     */
+    long sizeHint(WriterInterceptorContext context) {
+        Object length = context.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH);
+        if ( length != null ) {
+            try {
+                return Long.parseLong(length.toString());
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+
+        Object entity = context.getEntity();
+        if ( entity instanceof byte[] ) {
+            return ((byte[]) entity).length;
+        } else if ( entity instanceof CharSequence ) {
+            return ((CharSequence) entity).length();
+        }
+        return -1;
+    }
 }
@@ -16,7 +16,6 @@
 package org.gameontext.signed;
 
 import java.time.Duration;
-import java.time.Instant;
 
 /**
  * Timestamped Key
@@ -25,21 +24,21 @@ import java.time.Instant;
  */
 public final class TimestampedKey implements Comparable<TimestampedKey> {
     private String key;
-    private final Instant time = Instant.now();
-    private final Duration expiresAfter;
+    private final long time = SignedClock.now();
+    private final long expiresAfter;
 
     public TimestampedKey(Duration expiresAfter){
-        this.expiresAfter = expiresAfter;
+        this.expiresAfter = expiresAfter.toMillis();
     }
 
     public TimestampedKey(String a, Duration expiresAfter){
         this.key=a;
-        this.expiresAfter = expiresAfter;
+        this.expiresAfter = expiresAfter.toMillis();
     }
 
     @Override
     public int compareTo(TimestampedKey o) {
-        return o.time.compareTo(time);
+        return Long.compare(o.time, time);
     }
 
     @Override
@@ -68,10 +67,8 @@ public final class TimestampedKey implements Comparable<TimestampedKey> {
     }
 
     public boolean hasExpired() {
-        Instant now = Instant.now();
-
         //if the key is older than this time period.. we'll consider it dead.
-        return Duration.between(time,now).compareTo(expiresAfter) > 0;
+        return SignedClock.now() - time > expiresAfter;
     }
 
     public String getKey() {
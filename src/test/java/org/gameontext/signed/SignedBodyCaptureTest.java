@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedBodyCaptureTest {
+
+    @Test
+    public void testCaptureAcrossChunks() throws Exception {
+        byte[] content = new byte[SignedBodyCapture.CHUNK_SIZE * 2 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        SignedBodyCapture capture = new SignedBodyCapture(content.length, SignedWriterInterceptor.DEFAULT_SPILL_THRESHOLD);
+        capture.write(content[0]);
+        capture.write(content, 1, 100);
+        capture.write(content, 101, content.length - 101);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        capture.writeTo(out);
+
+        Assert.assertEquals(content.length, capture.length());
+        Assert.assertArrayEquals(content, out.toByteArray());
+        Assert.assertArrayEquals(MessageDigest.getInstance(SignedRequestHmac.SHA_256).digest(content), capture.digest());
+
+        capture.release();
+        Assert.assertTrue("Chunks should be returned to the pool", SignedBodyCapture.pooled.get() >= 3);
+    }
+
+    @Test
+    public void testSpillToFile() throws Exception {
+        byte[] content = new byte[SignedBodyCapture.CHUNK_SIZE * 5 + 3];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+
+        SignedBodyCapture capture = new SignedBodyCapture(-1, SignedBodyCapture.CHUNK_SIZE * 2);
+        for (int i = 0; i < content.length; i += 1000) {
+            capture.write(content, i, Math.min(1000, content.length - i));
+        }
+        Assert.assertTrue("Body should have spilled to a file", capture.spilled());
+        Assert.assertEquals("Only the write buffer should remain in memory", 1, capture.chunks.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        capture.writeTo(out);
+        Assert.assertArrayEquals(content, out.toByteArray());
+        Assert.assertArrayEquals(MessageDigest.getInstance(SignedRequestHmac.SHA_256).digest(content), capture.digest());
+
+        capture.release();
+        Assert.assertFalse(capture.spilled());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        SignedBodyCapture capture = new SignedBodyCapture(-1, SignedWriterInterceptor.DEFAULT_SPILL_THRESHOLD);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        capture.writeTo(out);
+        Assert.assertEquals(0, out.size());
+        Assert.assertArrayEquals(MessageDigest.getInstance(SignedRequestHmac.SHA_256).digest(new byte[0]), capture.digest());
+        capture.release();
+    }
+}
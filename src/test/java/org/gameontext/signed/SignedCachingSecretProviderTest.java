@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignedCachingSecretProviderTest {
+
+    /** secrets by id, counting lookups: ids that start with "fail" throw */
+    static final class Secrets implements SignedRequestSecretProvider {
+        final Map<String, String> secrets = new ConcurrentHashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public String getSecretForId(String userId) {
+            lookups.incrementAndGet();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if ( userId.startsWith("fail") ) {
+                throw new IllegalStateException("player service unavailable");
+            }
+            return secrets.get(userId);
+        }
+    }
+
+    final Secrets secrets = new Secrets();
+    final SignedClockTest.FixedClock clock = new SignedClockTest.FixedClock(1000000);
+
+    @Before
+    public void before() {
+        SignedClock.set(clock);
+        secrets.secrets.put("fred", "fredSecret");
+        secrets.secrets.put("wilma", "wilmaSecret");
+    }
+
+    @After
+    public void after() {
+        SignedClock.set(null);
+    }
+
+    @Test
+    public void testHitsAndExpiry() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 1000, 100, 100, 1, Runnable::run);
+
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(1, secrets.lookups.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        // fetched again once the ttl has passed
+        secrets.secrets.put("fred", "newSecret");
+        clock.millis += 1000;
+        Assert.assertEquals("newSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(2, secrets.lookups.get());
+    }
+
+    @Test
+    public void testRefreshAhead() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 1000, 100, 100, 0.5, Runnable::run);
+
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        secrets.secrets.put("fred", "newSecret");
+
+        // past the refresh point, the cached secret is returned while it is fetched again
+        clock.millis += 600;
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(1, cache.getRefreshCount());
+        Assert.assertEquals("newSecret", cache.getSecretForId("fred"));
+
+        // the refreshed secret has a new ttl, so the original expiry is not a miss
+        clock.millis += 600;
+        Assert.assertEquals("newSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testNegativeAndFailures() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 1000, 100, 100, 1, Runnable::run);
+
+        Assert.assertNull(cache.getSecretForId("barney"));
+        Assert.assertNull(cache.getSecretForId("barney"));
+        Assert.assertEquals(1, cache.getNegativeHitCount());
+        Assert.assertEquals(1, secrets.lookups.get());
+
+        // unknown ids are remembered for a shorter time
+        secrets.secrets.put("barney", "barneySecret");
+        clock.millis += 100;
+        Assert.assertEquals("barneySecret", cache.getSecretForId("barney"));
+
+        // failures are not cached
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getSecretForId("failing");
+                Assert.fail("Lookup should have failed");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(2, cache.getLoadFailureCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 1000, 100, 100, 1, Runnable::run);
+
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        secrets.secrets.put("fred", "rotatedSecret");
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+
+        cache.invalidate("fred");
+        Assert.assertEquals("rotatedSecret", cache.getSecretForId("fred"));
+
+        cache.getSecretForId("wilma");
+        cache.invalidateAll();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBounded() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 60000, 60000, 10, 1, Runnable::run);
+
+        for (int i = 0; i < 100; i++) {
+            clock.millis++;
+            cache.getSecretForId("fred");
+            cache.getSecretForId("user" + i);
+        }
+        Assert.assertTrue("Cache should be bounded: " + cache.size(), cache.size() <= 10);
+        Assert.assertTrue(cache.getEvictionCount() >= 90);
+        Assert.assertTrue("Recently used ids should mostly be kept: " + cache.getHitCount(), cache.getHitCount() >= 80);
+    }
+
+    @Test
+    public void testCoalesced() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 0, 0, 100, 1, Runnable::run);
+        secrets.gate = new CountDownLatch(1);
+
+        // one lookup answers every caller waiting for the same id
+        List<CompletableFuture<String>> callers = lookups(cache, "fred", 8);
+        SignedClusterReplayStoreTest.await(() -> cache.getCoalescedCount() == 7);
+        secrets.gate.countDown();
+        for (CompletableFuture<String> caller : callers) {
+            Assert.assertEquals("fredSecret", caller.join());
+        }
+        Assert.assertEquals(1, secrets.lookups.get());
+
+        // nothing is kept once the lookup completes when the ttl is 0
+        Assert.assertEquals("fredSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(2, secrets.lookups.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCoalescedFailure() {
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(secrets, 1000, 100, 100, 1, Runnable::run);
+        secrets.gate = new CountDownLatch(1);
+
+        // every waiting caller sees the failure
+        List<CompletableFuture<String>> callers = lookups(cache, "failing", 4);
+        SignedClusterReplayStoreTest.await(() -> cache.getCoalescedCount() == 3);
+        secrets.gate.countDown();
+        for (CompletableFuture<String> caller : callers) {
+            try {
+                caller.join();
+                Assert.fail("Lookup should have failed");
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        Assert.assertEquals(1, secrets.lookups.get());
+        Assert.assertEquals(1, cache.getLoadFailureCount());
+
+        // and the failure is not remembered
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() {
+        CountDownLatch rotated = new CountDownLatch(1);
+        AtomicInteger lookups = new AtomicInteger();
+        SignedRequestSecretProvider rotating = userId -> {
+            if ( lookups.incrementAndGet() > 1 ) {
+                return "newSecret";
+            }
+            try {
+                rotated.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "oldSecret";
+        };
+        SignedCachingSecretProvider cache = new SignedCachingSecretProvider(rotating, 1000, 100, 100, 1, Runnable::run);
+
+        // the secret is rotated while the old one is being fetched
+        CompletableFuture<String> before = lookups(cache, "fred", 1).get(0);
+        SignedClusterReplayStoreTest.await(() -> lookups.get() == 1);
+        cache.invalidate("fred");
+        rotated.countDown();
+        Assert.assertEquals("oldSecret", before.join());
+        Assert.assertEquals("The old secret should not be cached", 0, cache.size());
+
+        Assert.assertEquals("newSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals("newSecret", cache.getSecretForId("fred"));
+        Assert.assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testInstalled() {
+        SignedRequestSecretProvider wrapped = SignedCachingSecretProvider.wrap(secrets, ConfigProvider.getConfig());
+        Assert.assertSame(wrapped, SignedCachingSecretProvider.get());
+        Assert.assertSame(wrapped, SignedCachingSecretProvider.wrap(wrapped, null));
+    }
+
+    static List<CompletableFuture<String>> lookups(SignedRequestSecretProvider provider, String userId, int count) {
+        List<CompletableFuture<String>> callers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CompletableFuture<String> caller = new CompletableFuture<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    caller.complete(provider.getSecretForId(userId));
+                } catch (RuntimeException e) {
+                    caller.completeExceptionally(e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            callers.add(caller);
+        }
+        return callers;
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedClockTest {
+
+    static final class FixedClock extends SignedClock {
+        volatile long millis;
+
+        FixedClock(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+    }
+
+    @After
+    public void after() {
+        SignedClock.set(null);
+    }
+
+    @Test
+    public void testCoarse() throws InterruptedException {
+        SignedClock clock = SignedClock.coarse(1);
+        long first = clock.millis();
+        Assert.assertTrue(Math.abs(System.currentTimeMillis() - first) < 1000);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( clock.millis() == first && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(2);
+        }
+        Assert.assertTrue("Coarse clock should advance", clock.millis() > first);
+    }
+
+    @Test
+    public void testCoarseWallClockSteps() {
+        long hour = Duration.ofHours(1).toMillis();
+        long ms = 1000000L;
+        SignedClock.Coarse clock = new SignedClock.Coarse(1000000, 0);
+
+        clock.tick(1000010, 10 * ms);
+        Assert.assertEquals(1000010, clock.millis());
+
+        // stepped back a little: runs at half speed, rather than going back
+        clock.tick(1000000, 20 * ms);
+        Assert.assertEquals(1000015, clock.millis());
+        clock.tick(1000010, 30 * ms);
+        Assert.assertEquals(1000020, clock.millis());
+        clock.tick(1000030, 50 * ms);
+        Assert.assertEquals(1000030, clock.millis());
+
+        // stepped back an hour: no more than MAX_AHEAD_MS ahead, then converges
+        clock.tick(1000060 - hour, 60 * ms);
+        Assert.assertEquals(1000060 - hour + SignedClock.MAX_AHEAD_MS, clock.millis());
+        long previous = clock.millis();
+        for (long t = 70; t <= 2 * SignedClock.MAX_AHEAD_MS + 60; t += 10) {
+            clock.tick(1000000 + t - hour, t * ms);
+            Assert.assertTrue("Should not go back", clock.millis() >= previous);
+            previous = clock.millis();
+        }
+        Assert.assertEquals(1000060 + 2 * SignedClock.MAX_AHEAD_MS - hour, clock.millis());
+
+        // stepped forward: follows the wall clock
+        clock.tick(1000030 + hour, 3000 * ms);
+        Assert.assertEquals(1000030 + hour, clock.millis());
+    }
+
+    @Test
+    public void testInjectedClock() {
+        Instant date = Instant.parse("2016-05-21T19:14:54Z");
+        FixedClock clock = new FixedClock(date.toEpochMilli());
+        SignedClock.set(clock);
+        Assert.assertEquals(date.toEpochMilli(), SignedClock.now());
+
+        SignedRequestHmac hmac = new SignedRequestHmac("id", "secret", "GET", "/path").setNow();
+        Assert.assertEquals(date, hmac.date);
+        hmac.checkExpiry();
+
+        TimestampedKey key = new TimestampedKey("key", Duration.ofSeconds(10));
+
+        // the end of the validity window
+        clock.millis += SignedRequestHmac.EXPIRES_REQUEST_MS.toMillis();
+        hmac.checkExpiry();
+        Assert.assertTrue(key.hasExpired());
+
+        clock.millis++;
+        try {
+            hmac.checkExpiry();
+            Assert.fail("Expiry check should have failed");
+        } catch(WebApplicationException e) {
+            Assert.assertTrue("Exception should indicate token expired", e.getMessage().contains("expire"));
+        }
+    }
+}
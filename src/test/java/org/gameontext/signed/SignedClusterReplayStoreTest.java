@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.microprofile.config.Config;
+import org.gameontext.signed.SignedReplayStore.Result;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.smallrye.config.PropertiesConfigSource;
+import io.smallrye.config.SmallRyeConfigBuilder;
+
+public class SignedClusterReplayStoreTest {
+
+    static final InetSocketAddress LOOPBACK = new InetSocketAddress("127.0.0.1", 0);
+
+    final List<SignedClusterReplayStore> nodes = new ArrayList<>();
+
+    @After
+    public void after() {
+        for (SignedClusterReplayStore node : nodes) {
+            node.close();
+        }
+    }
+
+    @Test
+    public void testReplicated() throws IOException {
+        SignedClusterReplayStore a = node(null);
+        SignedClusterReplayStore b = node(null);
+        SignedClusterReplayStore c = node(null);
+        join();
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(Result.ADDED, a.add(1, 2, now + 60000, now, false));
+        Assert.assertEquals("Near cache answers at once", Result.DUPLICATE, a.add(1, 2, now + 60000, now, true));
+
+        await(() -> b.size(System.currentTimeMillis()) == 1 && c.size(System.currentTimeMillis()) == 1);
+        Assert.assertEquals("Replayed to another node", Result.DUPLICATE, b.add(1, 2, now + 60000, now, false));
+        Assert.assertEquals(Result.DUPLICATE, c.add(1, 2, now + 60000, now, false));
+
+        // peers expire the signature at the same time
+        now += 60001;
+        Assert.assertEquals(0, c.size(now));
+        Assert.assertEquals(Result.ADDED, c.add(1, 2, now + 60000, now, false));
+    }
+
+    @Test
+    public void testBatched() throws IOException {
+        SignedClusterReplayStore a = node(null);
+        SignedClusterReplayStore b = node(null);
+        join();
+
+        long now = System.currentTimeMillis();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(Result.ADDED, a.add(i, i, now + 60000, now, false));
+        }
+
+        await(() -> b.size(System.currentTimeMillis()) == count);
+        Assert.assertEquals(count, a.sentEntries.get());
+        Assert.assertTrue("Signatures should be sent in batches: " + a.sentBatches,
+                a.sentBatches.get() <= count / 4);
+    }
+
+    @Test
+    public void testSecret() throws IOException {
+        SignedClusterReplayStore a = node("secret");
+        SignedClusterReplayStore b = node("secret");
+        SignedClusterReplayStore c = node("other");
+        join();
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(Result.ADDED, a.add(1, 2, now + 60000, now, false));
+        await(() -> b.size(System.currentTimeMillis()) == 1 && c.rejected.get() == 1);
+        Assert.assertEquals("Unauthenticated signatures are ignored", 0, c.size(now));
+    }
+
+    @Test
+    public void testExpiryCapped() throws IOException {
+        SignedClusterReplayStore a = node(null);
+        SignedClusterReplayStore b = node(null);
+        join();
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(Result.ADDED, a.add(1, 2, Long.MAX_VALUE, now, false));
+        await(() -> b.size(System.currentTimeMillis()) == 1);
+
+        // a peer can not hold the slot for longer than this node would
+        now += SignedRequestHmac.EXPIRES_REPLAY_MS.plus(SignedRequestHmac.REPLAY_SKEW_MS).toMillis() + 1000;
+        Assert.assertEquals(1, a.size(now));
+        Assert.assertEquals(0, b.size(now));
+    }
+
+    @Test
+    public void testSecretRequired() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("gameon.signed.replay.store", "cluster");
+        properties.put("gameon.signed.replay.cluster.bind", "127.0.0.1:0");
+        try {
+            SignedRequestTimedCache.createStore(config(properties));
+            Assert.fail("The cluster store should not start without a secret");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("gameon.signed.replay.cluster.secret"));
+        }
+
+        properties.put("gameon.signed.replay.cluster.secret", "secret");
+        SignedReplayStore store = SignedRequestTimedCache.createStore(config(properties));
+        nodes.add((SignedClusterReplayStore) store);
+    }
+
+    static Config config(Map<String, String> properties) {
+        return new SmallRyeConfigBuilder()
+                .withSources(new PropertiesConfigSource(properties, "test", 500))
+                .build();
+    }
+
+    SignedClusterReplayStore node(String secret) throws IOException {
+        SignedClusterReplayStore node = new SignedClusterReplayStore(new SignedReplayTable(), LOOPBACK,
+                Collections.emptyList(), 2, secret);
+        nodes.add(node);
+        return node;
+    }
+
+    void join() {
+        for (SignedClusterReplayStore node : nodes) {
+            for (SignedClusterReplayStore peer : nodes) {
+                node.addPeer(peer.getAddress());
+            }
+        }
+    }
+
+    static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( !condition.getAsBoolean() ) {
+            Assert.assertTrue("Timed out waiting for replication", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
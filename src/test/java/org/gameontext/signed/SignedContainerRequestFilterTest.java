@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.net.URI;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class SignedContainerRequestFilterTest {
+    static final String id = "fred";
+    static final String secret = "fredSecret";
+    static final String path = "/map/v1/sites";
+
+    @Mocked Response response;
+    @Mocked ContainerRequestContext context;
+    @Mocked UriInfo uriInfo;
+
+    final MultivaluedHashMap<String, String> headers = new MultivaluedHashMap<>();
+
+    @Before
+    public void before() {
+        new Expectations() {{
+            context.getHeaderString(SignedRequestHmac.GAMEON_ID); result = id; minTimes = 0;
+            context.getMethod(); result = "POST"; minTimes = 0;
+            context.getHeaders(); result = headers; minTimes = 0;
+            context.getUriInfo(); result = uriInfo; minTimes = 0;
+            uriInfo.getAbsolutePath(); result = URI.create("http://localhost" + path); minTimes = 0;
+            uriInfo.getQueryParameters(false); result = new MultivaluedHashMap<String, String>(); minTimes = 0;
+        }};
+    }
+
+    @Test
+    public void testForgedSignatureIsNotRemembered() throws Exception {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(null, 0, 1);
+        SignedContainerRequestFilter filter = new SignedContainerRequestFilter(userId -> secret, cache);
+
+        new SignedRequestHmac(id, secret, "POST", path)
+                .setNow()
+                .signRequest(new SignedRequestMap.MVSS_StringMap(headers));
+        String signature = headers.getFirst(SignedRequestHmac.GAMEON_SIGNATURE);
+
+        // forged signatures are refused without using the player's quota
+        for (int i = 0; i < 5; i++) {
+            headers.putSingle(SignedRequestHmac.GAMEON_SIGNATURE, "forged" + i);
+            filter.filter(context);
+        }
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getQuotaRejections());
+
+        // so the real request is accepted, and only a replay of it is refused
+        headers.putSingle(SignedRequestHmac.GAMEON_SIGNATURE, signature);
+        filter.filter(context);
+        Assert.assertEquals(1, cache.size());
+        filter.filter(context);
+
+        new Verifications() {{
+            context.abortWith((Response) any); times = 6;
+        }};
+    }
+}
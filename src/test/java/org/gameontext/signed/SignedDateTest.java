@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedDateTest {
+
+    @Test
+    public void testRfc1123() {
+        assertParse("Sat, 21 May 2016 19:14:54 GMT", true);
+        assertParse("Tue, 3 Jun 2008 11:05:30 GMT", true);
+        assertParse("3 Jun 2008 11:05:30 GMT", true);
+        assertParse("Tue, 3 Jun 2008 11:05 GMT", true);
+        assertParse("Tue, 3 Jun 2008 13:05:30 +0200", true);
+        assertParse("Mon, 2 Jun 2008 23:05:30 -1030", true);
+        assertParse("Thu, 29 Feb 2024 00:00:00 GMT", true);
+        assertParse("Thu, 1 Jan 1970 00:00:00 GMT", true);
+
+        // valid, but not the usual form: handled by DateTimeFormatter
+        assertParse("tue, 3 jun 2008 11:05:30 gmt", false);
+    }
+
+    @Test
+    public void testGenerated() {
+        Instant start = Instant.parse("1999-12-25T10:15:30Z");
+        for (int i = 0; i < 2000; i++) {
+            Instant then = start.plus(i * 37L, ChronoUnit.HOURS).plusSeconds(i);
+            assertParse(DateTimeFormatter.RFC_1123_DATE_TIME.format(then.atZone(ZoneOffset.UTC)), true);
+            assertParse(DateTimeFormatter.RFC_1123_DATE_TIME.format(then.atZone(ZoneId.of("America/New_York"))), true);
+        }
+    }
+
+    @Test
+    public void testOldStyle() {
+        Instant now = Instant.now();
+        SignedDate.Parsed parsed = SignedDate.parse(now.toString());
+        Assert.assertTrue(parsed.oldStyle);
+        Assert.assertEquals(now, parsed.instant);
+    }
+
+    @Test
+    public void testInvalid() {
+        Assert.assertNull(SignedDate.parse(null));
+        Assert.assertNull(SignedDate.parse(""));
+        Assert.assertNull(SignedDate.parse("fish"));
+        Assert.assertNull(SignedDate.parse("Sat, 21 May 2016 19:14:54"));
+        Assert.assertNull(SignedDate.parse("Sat, 21 Maz 2016 19:14:54 GMT"));
+        Assert.assertNull(SignedDate.parse("Sat, 21 May 2016 25:14:54 GMT"));
+        Assert.assertNull("Day of week must match", SignedDate.parse("Sun, 21 May 2016 19:14:54 GMT"));
+        Assert.assertNull(SignedDate.parse("2016-05-21T19:14:54"));
+    }
+
+    @Test
+    public void testNow() {
+        SignedDate.Parsed now = SignedDate.now();
+        Assert.assertEquals(0, now.instant.getNano());
+        Assert.assertTrue(now.value.endsWith(" GMT"));
+        Assert.assertEquals(now.instant, SignedDate.parse(now.value).instant);
+
+        long seconds = Instant.now().getEpochSecond();
+        Assert.assertTrue(now.instant.getEpochSecond() <= seconds && now.instant.getEpochSecond() >= seconds - 1);
+    }
+
+    @Test
+    public void testCached() {
+        String value = "Sat, 21 May 2016 19:14:54 GMT";
+        Assert.assertSame(SignedDate.parse(value), SignedDate.parse(new String(value)));
+    }
+
+    void assertParse(String value, boolean fast) {
+        Instant expected = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        if ( fast ) {
+            Assert.assertEquals(value, expected.getEpochSecond(), SignedDate.parseRfc1123(value));
+        }
+
+        SignedDate.Parsed parsed = SignedDate.parse(value);
+        Assert.assertEquals(value, expected, parsed.instant);
+        Assert.assertFalse(value, parsed.oldStyle);
+    }
+}
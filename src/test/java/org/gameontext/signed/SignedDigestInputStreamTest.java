@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import mockit.Mocked;
+
+public class SignedDigestInputStreamTest {
+
+    static final String id = "MyUserId";
+    static final String secret = "fish";
+    static final String method = "POST";
+    static final String path = "/map/v1/sites";
+
+    @Mocked Response response;
+
+    SignedRequestMap headers = new SignedRequestMap.MVSO_StringMap(new MultivaluedHashMap<>());
+
+    @Test
+    public void testPartialReadVerified() throws Exception {
+        byte[] content = "{\"id\": \"test\"}\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        sign(content);
+
+        SignedDigestInputStream in = new SignedDigestInputStream(new ByteArrayInputStream(content), serverHmac());
+        byte[] start = new byte[4];
+        Assert.assertEquals(4, in.read(start));
+        Assert.assertEquals(content[4], in.read());
+
+        // remaining bytes (including line endings) are drained and hashed as sent
+        in.verify();
+        Assert.assertEquals(content.length, in.length);
+    }
+
+    @Test
+    public void testVerifyAfterClose() throws Exception {
+        byte[] content = "{id: 'test'}".getBytes(StandardCharsets.UTF_8);
+        sign(content);
+
+        SignedDigestInputStream in = new SignedDigestInputStream(new ByteArrayInputStream(content), serverHmac());
+        in.close();
+        in.verify();
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testTamperedBody() throws Exception {
+        sign("{id: 'test'}".getBytes(StandardCharsets.UTF_8));
+
+        byte[] tampered = "{id: 'fake'}".getBytes(StandardCharsets.UTF_8);
+        SignedDigestInputStream in = new SignedDigestInputStream(new ByteArrayInputStream(tampered), serverHmac());
+        in.verify();
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testMissingBody() throws Exception {
+        sign("{id: 'test'}".getBytes(StandardCharsets.UTF_8));
+
+        SignedDigestInputStream in = new SignedDigestInputStream(new ByteArrayInputStream(new byte[0]), serverHmac());
+        in.verify();
+    }
+
+    void sign(byte[] content) {
+        new SignedRequestHmac(id, secret, method, path)
+            .setNow()
+            .generateBodyHash(headers, content)
+            .signRequest(headers);
+    }
+
+    SignedRequestHmac serverHmac() {
+        return new SignedRequestHmac(id, secret, method, path).checkHeaders(headers);
+    }
+}
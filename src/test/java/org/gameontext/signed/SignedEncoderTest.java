@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class SignedEncoderTest {
+
+    static final String longValue;
+    static {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < SignedEncoder.BUFFER_SIZE * 3; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        longValue = builder.toString();
+    }
+
+    @Test
+    public void testSameBytesAsGetBytes() throws Exception {
+        assertSameHash("");
+        assertSameHash("Sat, 21 May 2016 19:14:54 GMT");
+        assertSameHash("café ☃ 😀");
+        assertSameHash("broken \ud83d surrogate");
+        assertSameHash(longValue);
+        assertSameHash(longValue + "é" + longValue);
+    }
+
+    @Test
+    public void testAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Allocation counting not supported",
+                bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+        SignedRequestMap headers = new SignedRequestMap.MVSO_StringMap(new MultivaluedHashMap<>());
+        new SignedRequestHmac("MyUserId", "fish", "POST", "/map/v1/sites")
+            .setDate("Sat, 21 May 2016 19:14:54 GMT")
+            .generateBodyHash(headers, "{id: 'test'}".getBytes(StandardCharsets.UTF_8))
+            .signRequest(headers);
+
+        SignedRequestHmac serverHmac = new SignedRequestHmac("MyUserId", "fish", "POST", "/map/v1/sites")
+                .checkHeaders(headers);
+
+        int iterations = 10000;
+        for (int i = 0; i < iterations; i++) {
+            serverHmac.verifyFullSignature();
+        }
+
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < iterations; i++) {
+            serverHmac.verifyFullSignature();
+        }
+        long perOp = (threads.getThreadAllocatedBytes(id) - before) / iterations;
+
+        // Mac.doFinal(byte[], int) still copies through an array of its own
+        Assert.assertTrue("Verify should allocate close to nothing: " + perOp, perOp < 128);
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest md = encoder.sha256();
+        encoder.update(md, "fish");
+        String hash = encoder.finish(md);
+
+        byte[] digest = MessageDigest.getInstance(SignedRequestHmac.SHA_256).digest("fish".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(encoder.matches(digest, hash, 0));
+        Assert.assertTrue(encoder.matches(digest, "A;B;" + hash, 4));
+
+        Assert.assertFalse(encoder.matches(digest, null, 0));
+        Assert.assertFalse(encoder.matches(digest, hash.substring(1), 0));
+        Assert.assertFalse(encoder.matches(digest, "!" + hash.substring(1), 0));
+        Assert.assertFalse(encoder.matches(digest, "é" + hash.substring(1), 0));
+
+        // the unused low bits of the last character must be zero
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        int last = alphabet.indexOf(hash.charAt(42));
+        for (int bits = 1; bits < 4; bits++) {
+            String alias = hash.substring(0, 42) + alphabet.charAt(last | bits) + "=";
+            Assert.assertArrayEquals(Base64.getDecoder().decode(hash), Base64.getDecoder().decode(alias));
+            Assert.assertFalse(alias, encoder.matches(digest, alias, 0));
+        }
+
+        digest[0]++;
+        Assert.assertFalse(encoder.matches(digest, hash, 0));
+    }
+
+    void assertSameHash(String value) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(SignedRequestHmac.SHA_256);
+        String expected = Base64.getEncoder().encodeToString(md.digest(value.getBytes(StandardCharsets.UTF_8)));
+
+        SignedEncoder encoder = SignedEncoder.get();
+        MessageDigest sha = encoder.sha256();
+        encoder.update(sha, value);
+        Assert.assertEquals(value, expected, encoder.finish(sha));
+    }
+}
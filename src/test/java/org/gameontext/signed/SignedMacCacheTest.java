@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignedMacCacheTest {
+
+    static final byte[] data = "GET/map/v1/sites/aRoomIdMyUserIdSat, 21 May 2016 19:14:54 GMT".getBytes(StandardCharsets.UTF_8);
+
+    @Before
+    public void before() {
+        SignedMacCache.clear();
+    }
+
+    @Test
+    public void testSameResultAsFreshMac() throws Exception {
+        byte[] expected = SignedMacCache.newMac("fish").doFinal(data);
+
+        Mac cached = SignedMacCache.get("fish");
+        Assert.assertArrayEquals(expected, cached.doFinal(data));
+
+        // partial update abandoned: next get must start from a clean state
+        cached.update(data);
+        Assert.assertSame(cached, SignedMacCache.get("fish"));
+        Assert.assertArrayEquals(expected, SignedMacCache.get("fish").doFinal(data));
+
+        Assert.assertFalse("Different secret should give a different hmac",
+                Arrays.equals(expected, SignedMacCache.get("chips").doFinal(data)));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        Mac before = SignedMacCache.get("fish");
+        Assert.assertNotNull(SignedMacCache.prototypes.get("fish"));
+
+        SignedMacCache.invalidate("fish");
+        Assert.assertNull(SignedMacCache.prototypes.get("fish"));
+        Assert.assertNotSame("Thread copy should be discarded", before, SignedMacCache.get("fish"));
+    }
+
+    @Test
+    public void testThreadIsolation() throws Exception {
+        Mac mine = SignedMacCache.get("fish");
+        Mac[] theirs = new Mac[1];
+        Thread t = new Thread(() -> {
+            try {
+                theirs[0] = SignedMacCache.get("fish");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        t.join();
+        Assert.assertNotSame(mine, theirs[0]);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        int generation = SignedMacCache.generation.get();
+        for (int i = 0; i < SignedMacCache.MAX_SECRETS + 10; i++) {
+            SignedMacCache.get("secret" + i);
+            if ( i % (4 * SignedMacCache.MAX_THREAD_SECRETS) == 0 ) {
+                SignedMacCache.get("secret0"); // used again once the thread's own clone is gone
+            }
+        }
+        // the least recently used prototype is dropped, one at a time
+        Assert.assertEquals(SignedMacCache.MAX_SECRETS, SignedMacCache.prototypes.size());
+        Assert.assertNotNull(SignedMacCache.prototypes.get("secret" + (SignedMacCache.MAX_SECRETS + 9)));
+        Assert.assertNotNull("Recently used", SignedMacCache.prototypes.get("secret0"));
+        Assert.assertNull("Least recently used", SignedMacCache.prototypes.get("secret1"));
+
+        // evicting a prototype does not retire the secret, so threads keep their clones
+        Assert.assertEquals(generation, SignedMacCache.generation.get());
+    }
+
+    /**
+     * Rough before/after comparison, not an assertion: see output.
+     * Only run with -Dgameon.signed.benchmark=true
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue("Benchmarks are not run by default", Boolean.getBoolean("gameon.signed.benchmark"));
+        int iterations = 20000;
+        for (int warm = 0; warm < 2; warm++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                SignedMacCache.newMac("fish").doFinal(data);
+            }
+            long uncached = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                SignedMacCache.get("fish").doFinal(data);
+            }
+            long cached = System.nanoTime() - start;
+
+            System.out.format("getInstance+init: %d ns/op, cached: %d ns/op%n",
+                    uncached / iterations, cached / iterations);
+        }
+    }
+}
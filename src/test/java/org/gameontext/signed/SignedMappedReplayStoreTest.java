@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gameontext.signed.SignedReplayStore.Result;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignedMappedReplayStoreTest {
+
+    Path path;
+
+    @Before
+    public void before() throws IOException {
+        path = Files.createTempFile("gameon-signed-replay", ".map");
+        Files.delete(path);
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testShared() throws IOException {
+        long now = 1000;
+        try (SignedMappedReplayStore a = new SignedMappedReplayStore(path, 4096);
+             SignedMappedReplayStore b = new SignedMappedReplayStore(path, 4096)) {
+
+            Assert.assertEquals(Result.ADDED, a.add(1, 2, now + 10, now, false));
+            Assert.assertEquals("Seen by the other store", Result.DUPLICATE, b.add(1, 2, now + 10, now, true));
+            Assert.assertEquals(Result.ADDED, b.add(3, 4, now + 1000, now, false));
+            Assert.assertEquals(Result.DUPLICATE, a.add(3, 4, now + 1000, now, false));
+            Assert.assertEquals(2, a.size(now));
+
+            // expired signatures may be added again, and are swept by either store
+            now += 100;
+            Assert.assertEquals(1, b.size(now));
+            Assert.assertEquals(1, a.sweep(now, Long.MAX_VALUE));
+            Assert.assertEquals(1, b.depth());
+            Assert.assertEquals(Result.ADDED, b.add(1, 2, now + 10, now, false));
+        }
+
+        // the file outlives the stores
+        try (SignedMappedReplayStore c = new SignedMappedReplayStore(path, 4096)) {
+            Assert.assertEquals(Result.DUPLICATE, c.add(3, 4, now + 1000, now, false));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSlotsMismatch() throws IOException {
+        try (SignedMappedReplayStore a = new SignedMappedReplayStore(path, 4096)) {
+            new SignedMappedReplayStore(path, 8192).close();
+        }
+    }
+
+    @Test
+    public void testFullAndAbandoned() throws IOException {
+        long now = 1000;
+        int slots = SignedMappedReplayStore.PROBES;
+        try (SignedMappedReplayStore store = new SignedMappedReplayStore(path, slots)) {
+            // every slot is in the probe window of every signature
+            for (int i = 0; i < slots; i++) {
+                Assert.assertEquals(Result.ADDED, store.add(i, i, now + 1000, now, false));
+            }
+            Assert.assertEquals(Result.FULL, store.add(slots, slots, now + 1000, now, false));
+            Assert.assertEquals(Result.DUPLICATE, store.add(0, 0, now + 1000, now, false));
+        }
+
+        // claims that were never published (the adder died) are reclaimed after a while
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer claim = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < slots; i++) {
+                claim.clear();
+                claim.putLong(-now).flip();
+                channel.write(claim, SignedMappedReplayStore.HEADER_BYTES + i * SignedMappedReplayStore.SLOT_BYTES + 2 * Long.BYTES);
+            }
+        }
+        try (SignedMappedReplayStore store = new SignedMappedReplayStore(path, slots)) {
+            Assert.assertEquals(Result.FULL, store.add(0, 0, now + 1000, now + 10, false));
+            now += SignedMappedReplayStore.CLAIM_TIMEOUT_MS;
+            Assert.assertEquals(Result.ADDED, store.add(0, 0, now + 1000, now, false));
+            Assert.assertEquals(slots - 1, store.sweep(now, Long.MAX_VALUE));
+            Assert.assertEquals(1, store.depth());
+        }
+    }
+
+    @Test
+    public void testStaleClaim() throws IOException {
+        long now = 100000;
+        int slots = SignedMappedReplayStore.PROBES;
+        new SignedMappedReplayStore(path, slots).close();
+
+        // a claim left by an adder that died: a new signature must not wait on it forever
+        long claimed = now - SignedMappedReplayStore.CLAIM_TIMEOUT_MS + 50;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer claim = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.nativeOrder());
+            claim.putLong(-claimed).flip();
+            channel.write(claim, SignedMappedReplayStore.HEADER_BYTES + 5 * SignedMappedReplayStore.SLOT_BYTES + 2 * Long.BYTES);
+        }
+        try (SignedMappedReplayStore store = new SignedMappedReplayStore(path, slots)) {
+            long start = System.nanoTime();
+            Assert.assertEquals(Result.ADDED, store.add(1, 1, now + 1000, now, false));
+            Assert.assertTrue("Should stop waiting once the claim times out",
+                    System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Assert.assertEquals(Result.DUPLICATE, store.add(1, 1, now + 1000, now, false));
+        }
+    }
+
+    @Test
+    public void testRacingStores() throws Exception {
+        int keys = 2000;
+        int threads = 4;
+        long now = System.currentTimeMillis();
+        AtomicInteger added = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        try (SignedMappedReplayStore a = new SignedMappedReplayStore(path, 1 << 16);
+             SignedMappedReplayStore b = new SignedMappedReplayStore(path, 1 << 16)) {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                SignedMappedReplayStore store = t % 2 == 0 ? a : b;
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < keys; i++) {
+                        if ( store.add(i * 31L, i * 0x9e3779b97f4a7c15L, now + 60000, now, false) == Result.ADDED ) {
+                            added.incrementAndGet();
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            Assert.assertTrue("Each signature is accepted at most once: " + added, added.get() <= keys);
+            // racing adders of the same signature may both keep their slot
+            Assert.assertTrue("Every signature is recorded", a.size(now) >= keys);
+        }
+    }
+
+    @Test
+    public void testCacheWithMappedStore() throws IOException {
+        SignedRequestTimedCache one = new SignedRequestTimedCache(new SignedMappedReplayStore(path, 4096), null, 0);
+        SignedRequestTimedCache two = new SignedRequestTimedCache(new SignedMappedReplayStore(path, 4096), null, 0);
+        try {
+            Assert.assertFalse(one.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertTrue("Replayed to another process", two.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertEquals(1, two.size());
+        } finally {
+            one.stop();
+            two.stop();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedNamesTest {
+
+    @Test
+    public void testSplit() {
+        String[] values = { "A;B;C;hash", "A;hash", ";hash", ";;hash", "A;;B;hash", "A;B;;hash", ";A;hash", "A;B;;;hash" };
+        for (String value : values) {
+            int end = value.lastIndexOf(';');
+            Assert.assertArrayEquals(value, value.substring(0, end).split(";"), SignedNames.split(value, end));
+        }
+    }
+
+    @Test
+    public void testParseCached() {
+        String header = "Content-Type;Content-Length;47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=";
+        int end = header.lastIndexOf(';');
+
+        SignedNames names = SignedNames.parse(header, end);
+        Assert.assertEquals("Content-Type;Content-Length;", names.prefix);
+        Assert.assertEquals(Arrays.asList("Content-Type", "Content-Length"), Arrays.asList(names.names));
+
+        String other = "Content-Type;Content-Length;AWRN0wv343B7k7Ucp1sipeM2U9hZLVlMzPNA6uUiyug=";
+        Assert.assertSame(names, SignedNames.parse(other, other.lastIndexOf(';')));
+
+        String longer = "Content-Type;Content-Length;X;AWRN0wv343B7k7Ucp1sipeM2U9hZLVlMzPNA6uUiyug=";
+        Assert.assertEquals(3, SignedNames.parse(longer, longer.lastIndexOf(';')).names.length);
+    }
+
+    @Test
+    public void testSameAsOf() {
+        SignedNames names = SignedNames.of(Arrays.asList("A", "gameon-id", "B"));
+        Assert.assertEquals("A;gameon-id;B;", names.prefix);
+        Assert.assertEquals(Arrays.asList("A", "B"), Arrays.asList(names.hashed));
+
+        String header = names.prefix + "hash";
+        Assert.assertArrayEquals(names.names, SignedNames.parse(header, header.lastIndexOf(';')).names);
+    }
+}
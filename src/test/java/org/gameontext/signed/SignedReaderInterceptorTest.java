@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class SignedReaderInterceptorTest {
+    static final String id = "fred";
+    static final String secret = "fredSecret";
+    static final String path = "/map/v1/sites";
+
+    @Mocked Response response;
+    @Mocked ReaderInterceptorContext context;
+
+    final SignedClockTest.FixedClock clock = new SignedClockTest.FixedClock(1600000000000L);
+    final SignedRequestMap headers = new SignedRequestMap.MVSO_StringMap(new MultivaluedHashMap<>());
+    final byte[] content = "{\"id\": \"test\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Before
+    public void before() {
+        SignedClock.set(clock);
+        new SignedRequestHmac(id, secret, "POST", path)
+            .setNow()
+            .generateBodyHash(headers, content)
+            .signRequest(headers);
+    }
+
+    @After
+    public void after() {
+        SignedClock.set(null);
+    }
+
+    @Test
+    public void testSlowBodyReplay() throws Exception {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(null, 0, 0);
+        SignedReaderInterceptor interceptor = new SignedReaderInterceptor(cache);
+
+        read(interceptor, new ByteArrayInputStream(content));
+        Assert.assertEquals(1, cache.size());
+
+        // replayed just inside the request window, with a body that arrives after the original is forgotten
+        clock.millis += SignedRequestHmac.EXPIRES_REQUEST_MS.toMillis() - 1000;
+        InputStream slow = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                clock.millis += Duration.ofMinutes(2).toMillis();
+                return super.read(b, off, len);
+            }
+        };
+        try {
+            read(interceptor, slow);
+            Assert.fail("Replayed request should have been refused");
+        } catch (WebApplicationException e) {
+            Assert.assertTrue("Exception should indicate the request expired", e.getMessage().contains("expire"));
+        }
+    }
+
+    void read(SignedReaderInterceptor interceptor, InputStream body) throws Exception {
+        SignedRequestHmac hmac = new SignedRequestHmac(id, secret, "POST", path)
+                .checkHeaders(headers)
+                .checkExpiry();
+        new Expectations() {{
+            context.getProperty("SignedRequestHmac"); result = hmac;
+            context.getInputStream(); result = body;
+        }};
+        interceptor.aroundReadFrom(context);
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedReplayFilterTest {
+
+    static final long WINDOW = SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis();
+
+    @Test
+    public void testNewThenMaybe() {
+        long now = 1000;
+        SignedReplayFilter filter = new SignedReplayFilter(WINDOW, 0.01, 1024 * 1024, now);
+
+        Assert.assertTrue(filter.add(1, 2, now + WINDOW, now));
+        Assert.assertFalse(filter.add(1, 2, now + WINDOW, now));
+
+        // still seen from the previous generation
+        now += WINDOW;
+        Assert.assertFalse(filter.add(1, 2, now + WINDOW, now));
+
+        // forgotten two generations later, once it has expired
+        now += WINDOW;
+        Assert.assertTrue(filter.add(3, 4, now + WINDOW, now));
+        now += WINDOW;
+        Assert.assertTrue(filter.add(1, 2, now + WINDOW, now));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        long now = 1000;
+        double fpp = 0.01;
+        SignedReplayFilter filter = new SignedReplayFilter(WINDOW, fpp, 4 * 1024 * 1024, now);
+        Random random = new Random(42);
+
+        // filled to capacity, new signatures are mistaken for duplicates at about the target rate
+        long count = filter.capacity();
+        for (long i = 0; i < count; i++) {
+            filter.add(random.nextLong(), random.nextLong(), now + WINDOW, now);
+        }
+        int probes = 20000;
+        int maybe = 0;
+        for (int i = 0; i < probes; i++) {
+            if ( !filter.add(random.nextLong(), random.nextLong(), now + WINDOW, now) ) {
+                maybe++;
+            }
+        }
+        double rate = maybe / (double) probes;
+        Assert.assertTrue("False positive rate at capacity " + count + " should be within the target: " + rate,
+                rate < fpp * 1.2);
+        Assert.assertTrue("Capacity " + count + " should not be far below what the filter holds: " + rate,
+                rate > fpp / 3);
+    }
+
+    @Test
+    public void testFalsePositiveModel() {
+        for (int hashes = 1; hashes <= SignedReplayFilter.MAX_HASHES; hashes++) {
+            double keys = SignedReplayFilter.keysPerWord(0.01, hashes);
+            Assert.assertEquals(0.01, SignedReplayFilter.falsePositiveRate(keys, hashes), 0.0001);
+        }
+        Assert.assertEquals(0, SignedReplayFilter.falsePositiveRate(0, 6), 0);
+        Assert.assertTrue(SignedReplayFilter.falsePositiveRate(Long.SIZE, 6) > 0.9);
+    }
+
+    @Test
+    public void testLongExpiryBypass() {
+        long now = 1000;
+        SignedReplayFilter filter = new SignedReplayFilter(WINDOW, 0.01, 1024 * 1024, now);
+
+        Assert.assertFalse("Longer than the window is never new", filter.add(1, 2, now + WINDOW * 3, now));
+        Assert.assertFalse("Nothing is new while it may be live", filter.add(3, 4, now + WINDOW, now));
+
+        now += WINDOW * 3 + 1;
+        Assert.assertTrue(filter.add(5, 6, now + WINDOW, now));
+    }
+
+    @Test
+    public void testCacheWithFilter() {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(new SignedReplayFilter(WINDOW, 0.01, 1024 * 1024,
+                System.currentTimeMillis()), 0, 0);
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertFalse(cache.isDuplicate("sig" + i, SignedRequestHmac.EXPIRES_REPLAY_MS));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(cache.isDuplicate("sig" + i, SignedRequestHmac.EXPIRES_REPLAY_MS));
+        }
+        Assert.assertEquals(1000, cache.size());
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedReplayTableTest {
+
+    @Test
+    public void testGrowAndShrink() {
+        SignedReplayTable table = new SignedReplayTable();
+        long now = 1000;
+        int count = SignedReplayTable.STRIPES * SignedReplayTable.MIN_CAPACITY * 4;
+
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(table.add("sig" + i, now + 1000, now));
+        }
+        Assert.assertEquals(count, table.size(now));
+        Assert.assertTrue("Table should have grown", table.bytes() > count * (long) SignedReplayTable.SLOT_BYTES);
+
+        // everything is still there after growing
+        for (int i = 0; i < count; i++) {
+            Assert.assertFalse(table.add("sig" + i, now + 1000, now));
+        }
+
+        // and is dropped once expired
+        Assert.assertEquals(count, table.purge(now + 1001));
+        Assert.assertEquals(0, table.size(now + 1001));
+        Assert.assertEquals(SignedReplayTable.STRIPES * SignedReplayTable.MIN_CAPACITY * (long) SignedReplayTable.SLOT_BYTES,
+                table.bytes());
+    }
+
+    @Test
+    public void testCollidingSlots() {
+        SignedReplayTable table = new SignedReplayTable();
+        long now = 1000;
+
+        // same stripe (low bits of k0) and home slot (k1 folded to 32 bits)
+        Assert.assertTrue(table.add(0, 1, now + 10, now));
+        Assert.assertTrue(table.add(1L << 32, 1L << 32, now + 1000, now));
+        Assert.assertTrue(table.add(2L << 32, 2L << 32 | 3, now + 1000, now));
+
+        // first entry expires: its slot is reused, the others are still found beyond it
+        now += 100;
+        Assert.assertFalse(table.add(2L << 32, 2L << 32 | 3, now + 1000, now));
+        Assert.assertTrue(table.add(3L << 32, 3L << 32 | 2, now + 1000, now));
+        Assert.assertFalse(table.add(1L << 32, 1L << 32, now + 1000, now));
+        Assert.assertEquals(3, table.size(now));
+    }
+
+    @Test
+    public void testSweepInPlace() {
+        SignedReplayTable table = new SignedReplayTable();
+        long now = 1000;
+        int count = SignedReplayTable.STRIPES * SignedReplayTable.MIN_CAPACITY / 2;
+
+        // interleave short and long lived entries, so probe sequences mix
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(table.add("sig" + i, now + (i % 2 == 0 ? 10 : 1000), now));
+        }
+        long bytes = table.bytes();
+
+        Assert.assertEquals(count / 2, table.sweep(now + 100, Long.MAX_VALUE));
+        Assert.assertEquals(count / 2, table.size(now + 100));
+        Assert.assertEquals("Sweep should not reallocate", bytes, table.bytes());
+
+        // every long lived entry can still be found after entries were shifted back
+        for (int i = 1; i < count; i += 2) {
+            Assert.assertFalse("sig" + i, table.add("sig" + i, now + 1000, now + 100));
+        }
+        for (int i = 0; i < count; i += 2) {
+            Assert.assertTrue("sig" + i, table.add("sig" + i, now + 1000, now + 100));
+        }
+    }
+
+    @Test
+    public void testSweepBudget() {
+        SignedReplayTable table = new SignedReplayTable();
+        long now = 1000;
+        for (int i = 0; i < 1000; i++) {
+            table.add("sig" + i, now + 10, now);
+        }
+
+        // a zero budget sweeps one stripe per call
+        int removed = 0;
+        for (int i = 0; i < SignedReplayTable.STRIPES; i++) {
+            removed += table.sweep(now + 100, 0);
+        }
+        Assert.assertEquals(1000, removed);
+    }
+
+    @Test
+    public void testKeyFromHmac() {
+        long now = 1000;
+        SignedReplayTable table = new SignedReplayTable();
+        byte[] raw = Base64.getDecoder().decode("mYsWeiZm9oyUmJXo1uCwq1AHoHSm5eLrblU9q35EjOU=");
+
+        Assert.assertTrue(table.add("mYsWeiZm9oyUmJXo1uCwq1AHoHSm5eLrblU9q35EjOU=", now + 10, now));
+        Assert.assertFalse(table.add(SignedReplayTable.getLong(raw, 0), SignedReplayTable.getLong(raw, 8), now + 10, now));
+    }
+}
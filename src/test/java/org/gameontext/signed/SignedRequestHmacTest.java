@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
@@ -270,6 +271,67 @@ public class SignedRequestHmacTest {
         }
     }
 
+    @Test
+    public void testReplayExpiresAtDate() throws Exception {
+        String path = "/map/v1/sites";
+        Instant date = Instant.now().minus(Duration.ofMinutes(4));
+
+        SignedRequestHmac clientHmac = new SignedRequestHmac(id, secret, "POST", path)
+                .setOldStyleDate(date);
+        clientHmac.signRequest(headers);
+
+        // remembered until the request expires, not for a full replay window from now
+        long expiresAt = date.toEpochMilli() + SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis();
+        Assert.assertEquals(expiresAt, clientHmac.replayExpiresAt());
+
+        SignedRequestTimedCache cache = new SignedRequestTimedCache();
+        clientHmac.checkDuplicate(cache);
+        Assert.assertEquals(1, cache.store().size(expiresAt));
+        Assert.assertEquals(0, cache.store().size(expiresAt + 1));
+
+        try {
+            clientHmac.checkDuplicate(cache);
+            Assert.fail("Duplicate request should have failed");
+        } catch(WebApplicationException e) {
+            Assert.assertTrue("Exception should indicate a duplicate", e.getMessage().contains("Duplicate"));
+        }
+
+        // without a date, the full replay window
+        long now = System.currentTimeMillis();
+        long fallback = new SignedRequestHmac(id, secret, "POST", path).replayExpiresAt();
+        Assert.assertTrue(fallback >= now + SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis());
+    }
+
+    @Test
+    public void testFutureDate() throws Exception {
+        String path = "/map/v1/sites";
+        long now = System.currentTimeMillis();
+
+        SignedRequestHmac clientHmac = new SignedRequestHmac(id, secret, "POST", path)
+                .setDate("Fri, 31 Dec 9999 23:59:59 GMT");
+        clientHmac.signRequest(headers);
+
+        SignedRequestHmac serverHmac = new SignedRequestHmac(id, secret, "POST", path)
+                .checkHeaders(headers);
+        try {
+            serverHmac.checkExpiry();
+            Assert.fail("Expiry check should have failed");
+        } catch(WebApplicationException e) {
+            Assert.assertTrue("Exception should indicate a future date", e.getMessage().contains("future"));
+        }
+
+        // never remembered for longer than a replay window (and skew)
+        long latest = System.currentTimeMillis()
+                + SignedRequestHmac.EXPIRES_REPLAY_MS.plus(SignedRequestHmac.REPLAY_SKEW_MS).toMillis();
+        long expiresAt = serverHmac.replayExpiresAt();
+        Assert.assertTrue(expiresAt > now && expiresAt <= latest);
+
+        // a little clock skew is allowed
+        new SignedRequestHmac(id, secret, "POST", path)
+                .setOldStyleDate(Instant.ofEpochMilli(now).plusSeconds(30))
+                .checkExpiry();
+    }
+
     @Test
     public void testOldHmac() throws Exception {
 
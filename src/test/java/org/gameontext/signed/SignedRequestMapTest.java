@@ -84,6 +84,26 @@ public class SignedRequestMapTest {
         assertMapAddBehavior(mls);
     }
 
+    @Test
+    public void testSingleValueNotCopied() {
+        String value = new String("Sat, 21 May 2016 19:14:54 GMT");
+
+        MultivaluedMap<String, Object> mvso = new MultivaluedHashMap<>();
+        mvso.add(SignedRequestHmac.GAMEON_DATE, value);
+        Assert.assertSame(value, new MVSO_StringMap(mvso).getAll(SignedRequestHmac.GAMEON_DATE, null));
+
+        MultivaluedMap<String, String> mvss = new MultivaluedHashMap<>();
+        mvss.add(SignedRequestHmac.GAMEON_DATE, value);
+        Assert.assertSame(value, new MVSS_StringMap(mvss).getAll(SignedRequestHmac.GAMEON_DATE, null));
+
+        Map<String, List<String>> mls = new HashMap<>();
+        mls.put(SignedRequestHmac.GAMEON_DATE, Arrays.asList(value));
+        Assert.assertSame(value, new MLS_StringMap(mls).getAll(SignedRequestHmac.GAMEON_DATE, null));
+
+        mvso.add("number", 42);
+        Assert.assertEquals("42", new MVSO_StringMap(mvso).getAll("number", null));
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testPutQueryParameterMap() {
         QueryParameterMap qp = new QueryParameterMap(queryString);
@@ -94,10 +114,50 @@ public class SignedRequestMapTest {
     @Test
     public void testQueryParameterMap() {
         QueryParameterMap qp = new QueryParameterMap(queryString);
-        qp.getFirst("forceUnpack");
-        Assert.assertEquals("Starting place should match", startingMap, qp.mvss.toString());
         assertMapGetBehavior(qp);
+        Assert.assertNull("Lookups should not unpack the query", qp.mvss);
+
+        qp.keySet(); // force unpack
+        Assert.assertEquals("Starting place should match", startingMap, qp.mvss.toString());
+    }
+
+    @Test
+    public void testQueryParameterMapSplit() {
+        String[] queries = { "", "a", "a=", "=a", "a=1&a", "a=1&&b=2", "a=1&&", "&", "&a=1", "a=b=c", "a=1&b=2&a=3", "a&a=2" };
+        String[] keys = { "", "a", "b", "=a", "c" };
+        for (String query : queries) {
+            QueryParameterMap qp = new QueryParameterMap(query);
+            for (String key : keys) {
+                Assert.assertEquals(query + " " + key, splitGetAll(query, key), qp.getAll(key, "missing"));
+                Assert.assertEquals(query + " " + key, splitMap(query).getFirst(key), qp.getFirst(key));
+            }
+        }
+    }
+
+    /** the original lookup */
+    String splitGetAll(String query, String key) {
+        List<String> values = splitMap(query).get(key);
+        if ( values == null )
+            return "missing";
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
 
+    /** the original, split based, unpacking */
+    MultivaluedMap<String, String> splitMap(String query) {
+        MultivaluedMap<String, String> internal = new MultivaluedHashMap<>();
+        for (String pair : query.split("&")) {
+            int pos = pair.indexOf("=");
+            if ( pos > 0 ) {
+                internal.add(pair.substring(0, pos), pair.substring(pos + 1));
+            } else {
+                internal.add(pair, null);
+            }
+        }
+        return internal;
     }
 
 
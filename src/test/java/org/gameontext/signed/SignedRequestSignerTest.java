@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.signed;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedHashMap;
+
+import org.gameontext.signed.SignedRequestMap.MVSO_StringMap;
+import org.gameontext.signed.SignedRequestMap.QueryParameterMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignedRequestSignerTest {
+    static final String id = "MyUserId";
+    static final String secret = "fish";
+
+    @Test
+    public void testSignAndVerify() throws Exception {
+        List<String> header_names = new ArrayList<>(Arrays.asList("Content-Type", "gameon-id"));
+        SignedRequestSigner signer = new SignedRequestSigner(id, secret, header_names, Arrays.asList("a"));
+
+        // Later changes to the caller's list do not affect the signer
+        header_names.add("Content-Length");
+
+        byte[] content = "{id: 'test'}".getBytes(SignedRequestHmac.UTF8);
+        MVSO_StringMap headers = new MVSO_StringMap(new MultivaluedHashMap<>());
+        headers.putSingle("Content-Type", "application/json");
+        QueryParameterMap query = new QueryParameterMap("a=1&b=2");
+
+        String signature = signer.sign("POST", "/map/v1/sites", headers, query,
+                MessageDigest.getInstance(SignedRequestHmac.SHA_256).digest(content));
+
+        Assert.assertEquals(signature, headers.getFirst(SignedRequestHmac.GAMEON_SIGNATURE));
+        Assert.assertEquals(id, headers.getFirst(SignedRequestHmac.GAMEON_ID));
+        Assert.assertTrue(headers.getFirst(SignedRequestHmac.GAMEON_HEADERS).startsWith("Content-Type;gameon-id;"));
+        Assert.assertTrue(headers.getFirst(SignedRequestHmac.GAMEON_PARAMETERS).startsWith("a;"));
+
+        new SignedRequestHmac(id, secret, "POST", "/map/v1/sites")
+                .checkHeaders(headers)
+                .checkExpiry()
+                .verifyBodyHash(content)
+                .verifyFullSignature();
+    }
+
+    @Test
+    public void testSameAsHmac() throws Exception {
+        SignedRequestSigner signer = new SignedRequestSigner(id, secret, Arrays.asList("Content-Type"), null);
+
+        MVSO_StringMap headers = new MVSO_StringMap(new MultivaluedHashMap<>());
+        headers.putSingle("Content-Type", "application/json");
+        String date = signer.prepare("GET", "/map/v1/sites", headers, null)
+                .signRequest(headers)
+                .dateString;
+
+        MVSO_StringMap expected = new MVSO_StringMap(new MultivaluedHashMap<>());
+        expected.putSingle("Content-Type", "application/json");
+        new SignedRequestHmac(id, secret, "GET", "/map/v1/sites")
+                .setDate(date)
+                .generateRequestHeaderHashes(expected, Arrays.asList("Content-Type"), null, null)
+                .signRequest(expected);
+
+        Assert.assertEquals(expected.getFirst(SignedRequestHmac.GAMEON_HEADERS), headers.getFirst(SignedRequestHmac.GAMEON_HEADERS));
+        Assert.assertEquals(expected.getFirst(SignedRequestHmac.GAMEON_SIGNATURE), headers.getFirst(SignedRequestHmac.GAMEON_SIGNATURE));
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        SignedRequestSigner signer = new SignedRequestSigner(id, secret, Arrays.asList("Content-Type"), null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final String path = "/map/v1/sites/" + i;
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < 500; j++) {
+                        MVSO_StringMap headers = new MVSO_StringMap(new MultivaluedHashMap<>());
+                        headers.putSingle("Content-Type", "text/plain");
+                        signer.sign("GET", path, headers, null, null);
+
+                        new SignedRequestHmac(id, secret, "GET", path)
+                                .checkHeaders(headers)
+                                .verifyRequestHeaderHashes(headers, null)
+                                .verifyFullSignature();
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testEmptySecret() {
+        new SignedRequestSigner(id, "");
+    }
+}
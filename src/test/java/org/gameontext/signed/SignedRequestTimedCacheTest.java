@@ -15,9 +15,13 @@
  *******************************************************************************/
 package org.gameontext.signed;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 
 import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.ws.rs.WebApplicationException;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -33,54 +37,226 @@ public class SignedRequestTimedCacheTest {
 
         SignedRequestTimedCache cache = new SignedRequestTimedCache();
 
-        cache.isDuplicate("george", oneMs);
-        Assert.assertEquals("Requests should containe one element", 1, cache.requests.size());
-        Assert.assertEquals("Requests should containe one element", 1, cache.triggerCount.get());
-        cache.isDuplicate("george", oneMs);
-        Assert.assertEquals("Requests should containe one element", 1, cache.requests.size());
-        Assert.assertEquals("Requests should containe one element", 1, cache.triggerCount.get());
+        Assert.assertFalse(cache.isDuplicate("george", SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertEquals("Requests should contain one element", 1, cache.size());
+        Assert.assertTrue(cache.isDuplicate("george", SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertEquals("Requests should contain one element", 1, cache.size());
 
-        cache.isDuplicate("judy", oneMs);
-        Assert.assertEquals("Requests should containe one element", 2, cache.requests.size());
-        Assert.assertEquals("Requests should containe one element", 2, cache.triggerCount.get());
+        Assert.assertFalse(cache.isDuplicate("judy", SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertEquals("Requests should contain two elements", 2, cache.size());
     }
 
     @Test
-    public void testTrigger(@Mocked ManagedExecutorService executor) {
-
+    public void testHmacKeys(@Mocked ManagedExecutorService executor) {
         SignedRequestTimedCache cache = new SignedRequestTimedCache();
 
-        // executor not called for this one
-        cache.triggerCount.set(1);
-        cache.isDuplicate("fred", SignedRequestHmac.EXPIRES_REPLAY_MS);
+        String a = "mYsWeiZm9oyUmJXo1uCwq1AHoHSm5eLrblU9q35EjOU=";
+        String b = "jblpGaN8bjd4SmhsK341EP1x7e2w8sZ3L1T64YB+mrQ=";
+        Assert.assertFalse(cache.isDuplicate(a, SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertFalse(cache.isDuplicate(b, SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertTrue(cache.isDuplicate(new String(a), SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertTrue(cache.isDuplicate(b, SignedRequestHmac.EXPIRES_REPLAY_MS));
+    }
+
+    @Test
+    public void testExpiredIsNotDuplicate(@Mocked ManagedExecutorService executor) {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache();
 
-        // executor triggered to clean up for this one
-        cache.triggerCount.set(SignedRequestTimedCache.TRIGGER_CLEANUP_DEPTH);
-        cache.isDuplicate("fred", SignedRequestHmac.EXPIRES_REPLAY_MS);
+        cache.isDuplicate("A", oneMs);
+        snooze(3); // make sure "A" has expired
+        Assert.assertEquals("'A' should be expired", 0, cache.size());
 
-        // executor triggered to clean up for this one
-        cache.triggerCount.set(SignedRequestTimedCache.TRIGGER_CLEANUP_DEPTH + 1);
-        cache.isDuplicate("fred", SignedRequestHmac.EXPIRES_REPLAY_MS);
+        Assert.assertFalse("Expired entry should be replaced", cache.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+        Assert.assertTrue(cache.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
     }
 
     @Test
     public void testCacheExpiration(@Mocked ManagedExecutorService executor) {
         SignedRequestTimedCache cache = new SignedRequestTimedCache();
 
-        cache.requests.put("A", new TimestampedKey("A", Duration.ofMillis(1)));
-        cache.requests.put("B", new TimestampedKey("B", SignedRequestHmac.EXPIRES_REPLAY_MS));
-        Assert.assertEquals(2, cache.requests.size());
+        cache.isDuplicate("A", Duration.ofMillis(100));
+        cache.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS);
+        Assert.assertEquals(2, cache.size());
 
-        snooze(3); // make sure "A" has expired
-        Assert.assertTrue("'A' should be expired", cache.requests.get("A").hasExpired());
+        snooze(110); // make sure "A" has expired
+        Assert.assertEquals(1, cache.store().sweep(System.currentTimeMillis(), Long.MAX_VALUE));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue("'B' should remain", cache.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS));
 
-        //calls to isduplicate flush the cache of expired keys.
-        cache.triggerCount.set(SignedRequestTimedCache.TRIGGER_CLEANUP_DEPTH + 1);
-        cache.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS);
+        // and after the replay window, "B" is gone too
+        Assert.assertEquals(1, cache.store().sweep(System.currentTimeMillis() + SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis() + 1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBounded(@Mocked ManagedExecutorService executor) {
+        SignedReplayTable table = new SignedReplayTable(SignedRequestTimedCache.DEFAULT_MAX_ENTRIES);
+        long now = System.currentTimeMillis();
+
+        // a steady stream of short-lived signatures reuses expired slots
+        for (int i = 0; i < 100000; i++) {
+            long then = now + i;
+            Assert.assertTrue(table.add("sig" + i, then + 10, then));
+        }
+        Assert.assertEquals("Table should not have grown",
+                SignedReplayTable.STRIPES * SignedReplayTable.MIN_CAPACITY * (long) SignedReplayTable.SLOT_BYTES,
+                table.bytes());
+    }
+
+    @Test
+    public void testSweeper(@Mocked ManagedExecutorService executor) {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache();
+        cache.start();
+        try {
+            cache.isDuplicate("A", oneMs);
+            cache.isDuplicate("B", oneMs);
+            cache.isDuplicate("C", SignedRequestHmac.EXPIRES_REPLAY_MS);
+
+            long deadline = System.currentTimeMillis() + 10 * SignedRequestTimedCache.DEFAULT_SWEEP_INTERVAL_MS;
+            while ( cache.getEvictedCount() < 2 && System.currentTimeMillis() < deadline ) {
+                snooze(50);
+            }
+            Assert.assertEquals("Background sweep should remove expired entries", 2, cache.getEvictedCount());
+            Assert.assertEquals(1, cache.size());
+            Assert.assertTrue(cache.getLastSweepNanos() > 0);
+        } finally {
+            cache.stop();
+        }
+    }
+
+    @Test
+    public void testCapacity(@Mocked ManagedExecutorService executor) {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(null, SignedReplayTable.STRIPES * 10, 0);
+
+        int added = 0;
+        try {
+            for (int i = 0; i < SignedReplayTable.STRIPES * 20; i++) {
+                Assert.assertFalse(cache.isDuplicate("sig" + i, SignedRequestHmac.EXPIRES_REPLAY_MS));
+                added++;
+            }
+            Assert.fail("Cache should have filled");
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(503, e.getResponse().getStatus());
+        }
+        Assert.assertEquals(1, cache.getCapacityRejections());
+        Assert.assertEquals(added, cache.getDepth());
+        Assert.assertTrue(cache.getDepth() <= SignedReplayTable.STRIPES * 10);
+
+        // duplicates are still reported as such when full
+        Assert.assertTrue(cache.isDuplicate("sig0", SignedRequestHmac.EXPIRES_REPLAY_MS));
+    }
+
+    @Test
+    public void testCapacityReclaimsExpired(@Mocked ManagedExecutorService executor) {
+        SignedReplayTable table = new SignedReplayTable(SignedReplayTable.STRIPES * 2);
+        long now = 1000;
+
+        // two entries per stripe: all of these are in stripe 0
+        Assert.assertEquals(SignedReplayStore.Result.ADDED, table.add(0, 1, now + 10, now, false));
+        Assert.assertEquals(SignedReplayStore.Result.ADDED, table.add(0, 2, now + 1000, now, false));
+        Assert.assertEquals(SignedReplayStore.Result.FULL, table.add(0, 3, now + 1000, now, false));
+        Assert.assertEquals(SignedReplayStore.Result.DUPLICATE, table.add(0, 2, now + 1000, now, false));
 
-        Assert.assertEquals(1, cache.requests.size());
-        Assert.assertNull("'A' should have been deleted: " + cache.requests, cache.requests.get("A"));
-        Assert.assertNotNull("'B' should remain: " + cache.requests, cache.requests.get("B"));
+        // once the first has expired, the full stripe is swept to make room
+        now += 100;
+        Assert.assertEquals(SignedReplayStore.Result.ADDED, table.add(0, 3, now + 1000, now, false));
+        Assert.assertEquals(SignedReplayStore.Result.FULL, table.add(0, 4, now + 1000, now, true));
+        Assert.assertEquals(2, table.depth());
+    }
+
+    @Test
+    public void testUserQuota(@Mocked ManagedExecutorService executor) {
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(null, 0, 3);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(cache.isDuplicate("fred" + i, SignedRequestHmac.EXPIRES_REPLAY_MS, "fred"));
+        }
+        try {
+            cache.isDuplicate("fred3", SignedRequestHmac.EXPIRES_REPLAY_MS, "fred");
+            Assert.fail("fred should be over quota");
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(429, e.getResponse().getStatus());
+        }
+        Assert.assertEquals(1, cache.getQuotaRejections());
+
+        // other users, and unauthenticated requests, are not affected
+        Assert.assertFalse(cache.isDuplicate("wilma0", SignedRequestHmac.EXPIRES_REPLAY_MS, "wilma"));
+        Assert.assertFalse(cache.isDuplicate("anon0", SignedRequestHmac.EXPIRES_REPLAY_MS, ""));
+    }
+
+    @Test
+    public void testQuotaWindow() {
+        long window = 1000;
+        SignedReplayQuotas quotas = new SignedReplayQuotas(2, window);
+        long now = 5000;
+
+        Assert.assertTrue(quotas.acquire("fred", now));
+        Assert.assertTrue(quotas.acquire("fred", now));
+        Assert.assertFalse(quotas.acquire("fred", now));
+
+        // a duplicate gives its place back
+        quotas.release("fred");
+        Assert.assertTrue(quotas.acquire("fred", now));
+
+        // half way through the next window, the previous window still counts for half
+        Assert.assertTrue(quotas.acquire("fred", now + window + window / 2));
+        Assert.assertFalse(quotas.acquire("fred", now + window + window / 2));
+
+        quotas.purge(now + window * 4);
+        Assert.assertEquals(0, quotas.size());
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Path path = Files.createTempFile("gameon-signed-replay", ".snapshot");
+        try {
+            SignedRequestTimedCache cache = new SignedRequestTimedCache(() -> new SignedReplayTable(), null, 0, path);
+            Assert.assertFalse(cache.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertFalse(cache.isDuplicate("B", oneMs));
+            snooze(3); // make sure "B" has expired
+            cache.stop();
+
+            // a restarted cache still knows "A", and "B" can be used again
+            SignedReplayFilter filter = new SignedReplayFilter(SignedRequestHmac.EXPIRES_REPLAY_MS.toMillis(), 0.01, 1024 * 1024,
+                    System.currentTimeMillis());
+            SignedRequestTimedCache restarted = new SignedRequestTimedCache(() -> new SignedReplayTable(), filter, 0, path);
+            Assert.assertEquals(1, restarted.size());
+            Assert.assertTrue("Restored signatures are not new to the filter",
+                    restarted.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertFalse(restarted.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertEquals(2, restarted.snapshot());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        Path path = Files.createTempFile("gameon-signed-replay", ".snapshot");
+        SignedRequestTimedCache cache = new SignedRequestTimedCache(() -> new SignedReplayTable(), null, 0, path);
+        try {
+            Assert.assertFalse(cache.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertFalse(cache.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS));
+
+            // appended without waiting for a snapshot
+            SignedClusterReplayStoreTest.await(() -> count(path) == 2);
+
+            // so a cache restarted after a crash (no snapshot at shutdown) still knows them
+            SignedRequestTimedCache restarted = new SignedRequestTimedCache(() -> new SignedReplayTable(), null, 0, path);
+            Assert.assertTrue(restarted.isDuplicate("A", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            Assert.assertTrue(restarted.isDuplicate("B", SignedRequestHmac.EXPIRES_REPLAY_MS));
+            restarted.stop();
+        } finally {
+            cache.stop();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    static int count(Path path) {
+        try {
+            return SignedReplaySnapshot.read(path, (k0, k1, expiresAt) -> { }, System.currentTimeMillis());
+        } catch (IOException e) {
+            return -1;
+        }
     }
 
     public void snooze(long ms) {